@@ -0,0 +1,61 @@
+package com.boxfort.jlox;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+// Measures how many bytes the tree-walking interpreter allocates per
+// iteration of numeric while loops once warmed up. Run with:
+//
+//   java -cp <classes> com.boxfort.jlox.AllocationBenchmark
+public class AllocationBenchmark {
+    private static final ErrorReporter REPORTER = new ErrorReporter();
+    private static final Symbols SYMBOLS = new Symbols();
+    private static final int ITERATIONS = 1_000_000;
+
+    private static final String GLOBAL_LOOP =
+        "var i = 0;\n" +
+        "var sum = 0;\n" +
+        "while (i < " + ITERATIONS + ") {\n" +
+        "    sum = sum + i * 2 - (i / 4);\n" +
+        "    i = i + 1;\n" +
+        "}\n";
+
+    private static final String LOCAL_LOOP =
+        "{\n" +
+        "    var i = 0;\n" +
+        "    var sum = 0;\n" +
+        "    while (i < " + ITERATIONS + " and sum >= 0) {\n" +
+        "        sum = sum + i * 2 - (i / 4);\n" +
+        "        i = i + 1;\n" +
+        "    }\n" +
+        "}\n";
+
+    public static void main(String[] args) {
+        report("global variables", GLOBAL_LOOP);
+        report("local variables", LOCAL_LOOP);
+    }
+
+    private static void report(String name, String source) {
+        TokenBuffer tokens = new Scanner(source, SYMBOLS, REPORTER).scanTokens();
+        List<Stmt> statements = new Parser(tokens.cursor(), REPORTER).parse();
+        new Resolver().resolve(statements);
+
+        // Warm up, then measure a fresh run of the same program.
+        for (int i = 0; i < 5; i++) {
+            new Interpreter(false, System.out::println, REPORTER).interpret(statements);
+        }
+
+        Interpreter interpreter = new Interpreter(false, System.out::println, REPORTER);
+        long before = allocatedBytes();
+        interpreter.interpret(statements);
+        long allocated = allocatedBytes() - before;
+
+        System.out.printf("%-18s %10d bytes, %.3f bytes/iteration%n",
+            name, allocated, (double)allocated / ITERATIONS);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,93 @@
+package com.boxfort.jlox;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Measures how many runs of a small script a JloxEngine completes per
+// second: one at a time, with RUNS of them submitted at once sharing
+// one compiled Program, and from source with and without a
+// ProgramCache. On JDK 21 and later submitted runs use virtual
+// threads. Run with:
+//
+//   java -jar jmh/target/benchmarks.jar EngineBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EngineBenchmark {
+    private static final int RUNS = 5000;
+    private static final OutputSink DISCARD = line -> {};
+
+    private static final String SOURCE =
+        "var total = 0;\n" +
+        "var i = 0;\n" +
+        "while (i < 200) {\n" +
+        "    var square = i * i;\n" +
+        "    if (square > 100) total = total + square; else total = total - i;\n" +
+        "    i = i + 1;\n" +
+        "}\n" +
+        "print \"total: \" + (total > 0 ? \"positive\" : \"negative\");\n" +
+        "print total;\n";
+
+    @Param({"false", "true"})
+    public boolean jit;
+
+    private JloxEngine engine;
+    private JloxEngine.Program program;
+    private ProgramCache cache;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        engine = new JloxEngine(jit);
+        program = engine.compile(SOURCE);
+        cache = new ProgramCache(engine, 100);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RUNS)
+    public int concurrent() {
+        CompletableFuture<?>[] runs = new CompletableFuture<?>[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            runs[i] = engine.submit(program, DISCARD);
+        }
+        CompletableFuture.allOf(runs).join();
+        return runs.length;
+    }
+
+    @Benchmark
+    public JloxEngine.Result sequential() {
+        return engine.run(program, DISCARD);
+    }
+
+    @Benchmark
+    public JloxEngine.Result uncached() {
+        return engine.run(SOURCE, DISCARD);
+    }
+
+    @Benchmark
+    public JloxEngine.Result cached() {
+        return cache.run(SOURCE, DISCARD);
+    }
+}
@@ -0,0 +1,73 @@
+package com.boxfort.jlox;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Collections;
+import java.util.List;
+
+// Compares the heap retained by a program of about a million nodes as a
+// tree of node objects and as a FlatAst. Run with:
+//
+//   java -cp <classes> com.boxfort.jlox.FootprintBenchmark
+public class FootprintBenchmark {
+    private static final ErrorReporter REPORTER = new ErrorReporter();
+    private static final Symbols SYMBOLS = new Symbols();
+    private static final int STATEMENTS = 50_000;
+
+    public static void main(String[] args) {
+        String source = source();
+
+        long before = usedHeap();
+        List<Stmt> tree = parse(source);
+        new Resolver().resolve(tree);
+        long treeBytes = usedHeap() - before;
+
+        before = usedHeap();
+        FlatAst flat = new FlatAst(SYMBOLS);
+        for (Stmt statement : parse(source)) {
+            List<Stmt> statements = Collections.singletonList(statement);
+            new Resolver().resolve(statements);
+            flat.add(statement);
+        }
+        long flatBytes = usedHeap() - before;
+
+        int nodes = flat.size();
+        System.out.printf("%d nodes%n", nodes);
+        report("object tree", treeBytes, nodes);
+        report("flat arrays", flatBytes, nodes);
+
+        // Keep both alive until measured.
+        if (tree.isEmpty() || flat.statementCount() == 0) System.exit(1);
+    }
+
+    // Statements of 20 nodes each: declarations and loops over globals
+    // and locals with arithmetic, comparisons and assignments.
+    private static String source() {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < STATEMENTS; i++) {
+            source.append("var v").append(i).append(" = ").append(i).append(";\n");
+            source.append("{ var t = v").append(i).append(" * 2 + 1;")
+                .append(" while (t > ").append(i).append(") t = t - 1;")
+                .append(" print t - v").append(i).append(" / 2 == 1; }\n");
+        }
+        return source.toString();
+    }
+
+    private static void report(String name, long bytes, int nodes) {
+        System.out.printf("%-12s %8.1f MB, %5.1f bytes/node%n",
+            name, bytes / 1e6, (double)bytes / nodes);
+    }
+
+    private static List<Stmt> parse(String source) {
+        TokenBuffer tokens = new Scanner(source, SYMBOLS, REPORTER).scanTokens();
+        return new Parser(tokens.cursor(), REPORTER).parse();
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,183 @@
+package com.boxfort.jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+// Checks that numbers print exactly as they did when formatted with
+// Double.toString() and a trailing ".0" removed, over a large random
+// corpus, then measures printing them. Exits with 1 on a mismatch.
+// Run with:
+//
+//   java -cp <classes> com.boxfort.jlox.NumberFormatBenchmark [count]
+public class NumberFormatBenchmark {
+    private static final int RUNS = 10;
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        double[] numbers = corpus(count, new Random(42));
+
+        int mismatches = 0;
+        for (double number : numbers) {
+            String expected = expected(number);
+            String actual = NumberFormatter.toString(number);
+            if (!expected.equals(actual)) {
+                if (mismatches++ < 20) {
+                    System.out.printf("%s (%016x): expected %s, got %s%n",
+                        number, Double.doubleToRawLongBits(number),
+                        expected, actual);
+                }
+            }
+        }
+
+        // The buffered sink formats into its own buffer, so check what
+        // it writes too.
+        if (!printed(numbers, count / 10).equals(printedExpected(numbers, count / 10))) {
+            System.out.println("ChannelSink output differs.");
+            mismatches++;
+        }
+
+        System.out.printf("%d numbers checked, %d mismatches%n",
+            numbers.length, mismatches);
+        if (mismatches > 0) System.exit(1);
+
+        // Printed values are already boxed by the interpreter.
+        Object[] integers = new Object[count];
+        Object[] mixed = new Object[count];
+        Random random = new Random(7);
+        for (int i = 0; i < count; i++) {
+            integers[i] = (double)(random.nextInt(2_000_000) - 1_000_000);
+            mixed[i] = numbers[i];
+        }
+
+        measure("integers, Double.toString", integers, false);
+        measure("integers, formatted", integers, true);
+        measure("mixed, Double.toString", mixed, false);
+        measure("mixed, formatted", mixed, true);
+    }
+
+    // The format from before the formatter.
+    private static String expected(double number) {
+        String text = Double.toString(number);
+        if (text.endsWith(".0")) {
+            text = text.substring(0, text.length() - 2);
+        }
+        return text;
+    }
+
+    // Random bit patterns, integers of every magnitude, short decimals,
+    // powers of two and ten either side of where the format changes,
+    // and the special values.
+    private static double[] corpus(int count, Random random) {
+        double[] numbers = new double[count];
+        int i = 0;
+
+        double[] special = {
+            0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, Double.MIN_VALUE, Double.MAX_VALUE,
+            Double.MIN_NORMAL, 0x1p53, -0x1p53, 0x1p53 - 1, 0x1p53 + 2,
+            1e7, 1e7 - 1, -1e7, 1e-3, 1e-4, 2e23, Long.MAX_VALUE,
+            Long.MIN_VALUE
+        };
+        for (double number : special) numbers[i++] = number;
+
+        for (int exponent = -1074; exponent <= 1023 && i < count; exponent++) {
+            numbers[i++] = Math.scalb(1.0, exponent);
+        }
+        for (int exponent = -30; exponent <= 30 && i < count; exponent++) {
+            double power = Math.pow(10, exponent);
+            numbers[i++] = power;
+            if (i < count) numbers[i++] = Math.nextUp(power);
+            if (i < count) numbers[i++] = Math.nextDown(power);
+        }
+
+        while (i < count) {
+            switch (random.nextInt(5)) {
+                case 0:
+                    numbers[i] = Double.longBitsToDouble(random.nextLong());
+                    break;
+                case 1:
+                    numbers[i] = random.nextLong() >> random.nextInt(64);
+                    break;
+                case 2:
+                    numbers[i] = random.nextInt(2_000_000) - 1_000_000;
+                    break;
+                case 3:
+                    numbers[i] = (random.nextInt(2_000_000) - 1_000_000) / 100.0;
+                    break;
+                default:
+                    numbers[i] = random.nextDouble() * Math.pow(10, random.nextInt(40) - 20);
+                    break;
+            }
+            i++;
+        }
+
+        return numbers;
+    }
+
+    private static String printed(double[] numbers, int count) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ChannelSink sink = new ChannelSink(Channels.newChannel(bytes));
+        for (int i = 0; i < count; i++) sink.printValue(numbers[i]);
+        sink.flush();
+        return bytes.toString();
+    }
+
+    private static String printedExpected(double[] numbers, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            text.append(expected(numbers[i])).append(System.lineSeparator());
+        }
+        return text.toString();
+    }
+
+    private static void measure(String name, Object[] values, boolean direct) {
+        ChannelSink sink = new ChannelSink(new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer source) {
+                int written = source.remaining();
+                source.position(source.limit());
+                return written;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {}
+        });
+
+        for (int run = 0; run < 2; run++) print(sink, values, direct);
+
+        long before = allocatedBytes();
+        long start = System.nanoTime();
+        for (int run = 0; run < RUNS; run++) print(sink, values, direct);
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - before;
+
+        long printed = (long)values.length * RUNS;
+        System.out.printf("%s: %.1f ns/number, %.2f bytes/number%n",
+            name, (double)elapsed / printed, (double)allocated / printed);
+    }
+
+    private static void print(ChannelSink sink, Object[] values, boolean direct) {
+        for (Object value : values) {
+            if (direct) {
+                sink.printValue(value);
+            } else {
+                sink.println(expected((double)value));
+            }
+        }
+        sink.flush();
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
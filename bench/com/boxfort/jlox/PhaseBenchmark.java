@@ -0,0 +1,131 @@
+package com.boxfort.jlox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Measures the throughput of scanning, parsing and interpreting each
+// program of a small corpus. Build with mvn package and run with:
+//
+//   java -jar jmh/target/benchmarks.jar PhaseBenchmark -prof gc
+//
+// where -prof gc adds the allocation rate per operation.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PhaseBenchmark {
+    private static final ErrorReporter REPORTER = new ErrorReporter();
+    private static final Symbols SYMBOLS = new Symbols();
+
+    public enum Program {
+        // A tight numeric while loop.
+        LOOP {
+            String source() {
+                return "var i = 0;\n" +
+                    "var sum = 0;\n" +
+                    "while (i < 100000) {\n" +
+                    "    sum = sum + i * 2 - i / 4;\n" +
+                    "    i = i + 1;\n" +
+                    "}\n";
+            }
+        },
+
+        // Blocks nested 100 deep, each declaring a variable that the
+        // innermost one adds up.
+        NESTING {
+            String source() {
+                StringBuilder source = new StringBuilder();
+                for (int repeat = 0; repeat < 20; repeat++) {
+                    for (int depth = 0; depth < 100; depth++) {
+                        source.append("{ var d").append(depth)
+                            .append(" = ").append(depth).append(";\n");
+                    }
+                    source.append("var total = d0");
+                    for (int depth = 1; depth < 100; depth++) {
+                        source.append(" + d").append(depth);
+                    }
+                    source.append(";\n");
+                    for (int depth = 0; depth < 100; depth++) {
+                        source.append("}\n");
+                    }
+                }
+                return source.toString();
+            }
+        },
+
+        // Building up a string one piece at a time.
+        STRINGS {
+            String source() {
+                return "var s = \"\";\n" +
+                    "var i = 0;\n" +
+                    "while (i < 2000) {\n" +
+                    "    s = s + \"ab\" + (i < 1000 ? \"c\" : \"d\");\n" +
+                    "    i = i + 1;\n" +
+                    "}\n";
+            }
+        },
+
+        // A long script of top-level statements.
+        FLAT {
+            String source() {
+                StringBuilder source = new StringBuilder("var v0 = 0;\n");
+                for (int i = 1; i < 20000; i++) {
+                    source.append("var v").append(i).append(" = v")
+                        .append(i - 1).append(" + ").append(i % 7)
+                        .append(" * 2;\n");
+                }
+                return source.toString();
+            }
+        };
+
+        abstract String source();
+    }
+
+    @Param
+    public Program program;
+
+    private String source;
+    private TokenBuffer tokens;
+    private List<Stmt> statements;
+
+    @Setup
+    public void setUp() {
+        source = program.source();
+        tokens = new Scanner(source, SYMBOLS, REPORTER).scanTokens();
+
+        statements = new Parser(tokens.cursor(), REPORTER).parse();
+        statements = new Optimizer().optimize(statements);
+        new Resolver().resolve(statements);
+    }
+
+    @Benchmark
+    public Object scan() {
+        return new Scanner(source, SYMBOLS, REPORTER).scanTokens();
+    }
+
+    @Benchmark
+    public Object parse() {
+        return new Parser(tokens.cursor(), REPORTER).parse();
+    }
+
+    @Benchmark
+    public Object interpret() {
+        Interpreter interpreter = new Interpreter(true, System.out::println, REPORTER);
+        interpreter.interpret(statements);
+        return interpreter;
+    }
+}
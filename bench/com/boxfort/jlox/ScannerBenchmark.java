@@ -0,0 +1,61 @@
+package com.boxfort.jlox;
+
+import java.lang.management.ManagementFactory;
+
+// Measures scanning speed and allocation on identifier-dense source,
+// where keyword recognition dominates. Run with:
+//
+//   java -cp <classes> com.boxfort.jlox.ScannerBenchmark
+public class ScannerBenchmark {
+    private static final ErrorReporter REPORTER = new ErrorReporter();
+    private static final Symbols SYMBOLS = new Symbols();
+    private static final int STATEMENTS = 200_000;
+    private static final int RUNS = 10;
+
+    // Identifiers that share first characters and lengths with keywords,
+    // alongside the keywords themselves.
+    private static final String[] WORDS = {
+        "and", "anchor", "class", "classify", "else", "elsewhere", "false",
+        "fa", "for", "fork", "fun", "funds", "if", "iffy", "nil", "nile",
+        "or", "orbit", "print", "printer", "return", "returns", "super",
+        "superb", "this", "thin", "true", "truth", "var", "vary", "while",
+        "whilst", "x", "count", "total_sum", "_tmp"
+    };
+
+    public static void main(String[] args) {
+        String source = source();
+
+        int tokens = 0;
+        for (int i = 0; i < RUNS; i++) {
+            tokens = new Scanner(source, SYMBOLS, REPORTER).scanTokens().size();
+        }
+
+        long before = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            new Scanner(source, SYMBOLS, REPORTER).scanTokens();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - before;
+
+        long scanned = (long)tokens * RUNS;
+        System.out.printf("%d tokens, %.1f ns/token, %.2f bytes/token%n",
+            tokens, (double)elapsed / scanned, (double)allocated / scanned);
+    }
+
+    private static String source() {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < STATEMENTS; i++) {
+            for (int j = 0; j < 8; j++) {
+                source.append(WORDS[(i * 7 + j * 13) % WORDS.length]).append(' ');
+            }
+            source.append(";\n");
+        }
+        return source.toString();
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
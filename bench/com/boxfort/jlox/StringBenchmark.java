@@ -0,0 +1,92 @@
+package com.boxfort.jlox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.boxfort.jlox.vm.Chunk;
+import com.boxfort.jlox.vm.VM;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Measures building a string up over 100,000 iterations and printing
+// it once, which flattens it. Run with:
+//
+//   java -jar jmh/target/benchmarks.jar StringBenchmark -prof gc
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StringBenchmark {
+    private static final ErrorReporter REPORTER = new ErrorReporter();
+    private static final Symbols SYMBOLS = new Symbols();
+    private static final OutputSink DISCARD = line -> {};
+
+    public enum Program {
+        // Adding to the end, the usual way to build a string.
+        APPEND("s = s + \"ab\";"),
+
+        // Adding to the front.
+        PREPEND("s = \"ab\" + s;"),
+
+        // Adding pieces that are themselves built up.
+        NESTED("s = s + (\"a\" + \"-\" + t);");
+
+        private final String step;
+
+        Program(String step) {
+            this.step = step;
+        }
+
+        String source() {
+            return "var s = \"\";\n" +
+                "var t = \"x\";\n" +
+                "var i = 0;\n" +
+                "while (i < 100000) {\n" +
+                "    " + step + "\n" +
+                "    i = i + 1;\n" +
+                "}\n" +
+                "print s;\n";
+        }
+    }
+
+    @Param
+    public Program program;
+
+    private List<Stmt> statements;
+    private Chunk chunk;
+
+    @Setup
+    public void setUp() {
+        TokenBuffer tokens = new Scanner(program.source(), SYMBOLS, REPORTER).scanTokens();
+        statements = new Parser(tokens.cursor(), REPORTER).parse();
+        statements = new Optimizer().optimize(statements);
+        new Resolver().resolve(statements);
+        chunk = new BytecodeCompiler(REPORTER).compile(statements);
+    }
+
+    @Benchmark
+    public Object interpret() {
+        Interpreter interpreter = new Interpreter(true, DISCARD, REPORTER);
+        interpreter.interpret(statements);
+        return interpreter;
+    }
+
+    @Benchmark
+    public Object vm() {
+        VM vm = new VM(DISCARD);
+        vm.interpret(chunk);
+        return vm;
+    }
+}
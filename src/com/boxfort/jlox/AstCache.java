@@ -0,0 +1,509 @@
+package com.boxfort.jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Caches parsed programs on disk so unchanged scripts needn't be
+// scanned and parsed again. Entries are named by the SHA-256 of the
+// source bytes, the charset they're decoded with and the format
+// version, and hold the syntax tree in a compact binary form that's
+// read back through a memory-mapped buffer.
+//
+// An entry holds a string table followed by the statements. Nodes are
+// written depth first, each as a tag byte followed by its fields, and
+// tokens as their type, lexeme and line, which is all the interpreter
+// and its runtime errors use. Only programs without syntax errors are
+// cached, so every entry parses cleanly.
+//
+// The cache keeps at most MAX_ENTRIES entries, removing the oldest
+// when a new one is stored. Deleting the directory clears it.
+class AstCache {
+    private static final int MAGIC = 0x4a4c4f58; // "JLOX"
+    private static final int VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte ASSIGN = 1;
+    private static final byte TERNARY = 2;
+    private static final byte BINARY = 3;
+    private static final byte GROUPING = 4;
+    private static final byte LITERAL = 5;
+    private static final byte LOGICAL = 6;
+    private static final byte UNARY = 7;
+    private static final byte VARIABLE = 8;
+    private static final byte BLOCK = 9;
+    private static final byte EXPRESSION = 10;
+    private static final byte IF = 11;
+    private static final byte PRINT = 12;
+    private static final byte VAR = 13;
+    private static final byte WHILE = 14;
+
+    // Literal values.
+    private static final byte NIL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte NUMBER = 3;
+    private static final byte STRING = 4;
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private static final int MAX_ENTRIES = 1000;
+
+    private final Path directory;
+
+    AstCache(Path directory) {
+        this.directory = directory;
+    }
+
+    // The directory named by the jlox.cache.dir system property, or
+    // ~/.cache/jlox.
+    static Path defaultDirectory() {
+        String directory = System.getProperty("jlox.cache.dir");
+        if (directory != null) return Paths.get(directory);
+        return Paths.get(System.getProperty("user.home"), ".cache", "jlox");
+    }
+
+    String key(byte[] source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source);
+            digest.update((byte)0);
+            digest.update(Charset.defaultCharset().name()
+                .getBytes(StandardCharsets.UTF_8));
+            digest.update((byte)VERSION);
+
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM must support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Returns the cached statements, with their names interned in
+    // symbols, or null if there are none or they can't be read.
+    List<Stmt> load(String key, Symbols symbols) {
+        try (FileChannel channel = FileChannel.open(path(key))) {
+            ByteBuffer buffer = channel.map(
+                FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new Reader(buffer, symbols).read();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | BufferUnderflowException |
+                 IllegalArgumentException | IndexOutOfBoundsException |
+                 NegativeArraySizeException e) {
+            // A damaged entry is parsed again and replaced.
+            return null;
+        }
+    }
+
+    // Writes the statements to the cache. Failing to is not an error, as
+    // the program can still run.
+    void store(String key, List<Stmt> statements) {
+        try {
+            Files.createDirectories(directory);
+
+            // Write to a temporary file and move it into place, so a
+            // concurrent load never sees part of an entry.
+            Path temporary = Files.createTempFile(directory, key, ".tmp");
+            try {
+                Files.write(temporary, new Writer().write(statements));
+                Files.move(temporary, path(key),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+
+            evict();
+        } catch (IOException e) {
+            // Leave the cache as it is.
+        }
+    }
+
+    // Removes the oldest entries beyond MAX_ENTRIES. Another process
+    // may be doing the same, so entries can vanish while this runs.
+    private void evict() throws IOException {
+        List<Path> entries;
+        try (Stream<Path> files = Files.list(directory)) {
+            entries = files
+                .filter(file -> file.toString().endsWith(".ast"))
+                .collect(Collectors.toList());
+        }
+        if (entries.size() <= MAX_ENTRIES) return;
+
+        Map<Path, FileTime> written = new HashMap<>();
+        for (Path entry : entries) {
+            try {
+                written.put(entry, Files.getLastModifiedTime(entry));
+            } catch (NoSuchFileException e) {
+                // Already removed.
+            }
+        }
+
+        List<Path> oldest = written.keySet().stream()
+            .sorted(Comparator.comparing(written::get))
+            .limit(Math.max(0, written.size() - MAX_ENTRIES))
+            .collect(Collectors.toList());
+        for (Path entry : oldest) {
+            Files.deleteIfExists(entry);
+        }
+    }
+
+    private Path path(String key) {
+        return directory.resolve(key + ".ast");
+    }
+
+    private static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> strings = new LinkedHashMap<>();
+
+        byte[] write(List<Stmt> statements) throws IOException {
+            try {
+                out.writeInt(statements.size());
+                for (Stmt statement : statements) {
+                    statement.accept(this);
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            ByteArrayOutputStream entry = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(entry);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeInt(strings.size());
+            for (String string : strings.keySet()) {
+                byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+                header.writeInt(utf8.length);
+                header.write(utf8);
+            }
+            bytes.writeTo(header);
+            header.flush();
+
+            return entry.toByteArray();
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            tag(BLOCK);
+            writeInt(stmt.statements.size());
+            for (Stmt statement : stmt.statements) {
+                statement.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            tag(EXPRESSION);
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            tag(IF);
+            stmt.condition.accept(this);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) {
+                stmt.elseBranch.accept(this);
+            } else {
+                tag(NULL);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            tag(PRINT);
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            tag(VAR);
+            token(stmt.name);
+            if (stmt.initializer != null) {
+                stmt.initializer.accept(this);
+            } else {
+                tag(NULL);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            tag(WHILE);
+            stmt.condition.accept(this);
+            stmt.body.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            tag(ASSIGN);
+            token(expr.name);
+            expr.value.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            tag(TERNARY);
+            token(expr.operator);
+            expr.condition.accept(this);
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            tag(BINARY);
+            token(expr.operator);
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            tag(GROUPING);
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            tag(LITERAL);
+            if (expr.value == null) {
+                tag(NIL);
+            } else if (expr.value instanceof Boolean) {
+                tag((boolean)expr.value ? TRUE : FALSE);
+            } else if (expr.value instanceof Double) {
+                tag(NUMBER);
+                try {
+                    out.writeDouble((double)expr.value);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                tag(STRING);
+                string((String)expr.value);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            tag(LOGICAL);
+            token(expr.operator);
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            tag(UNARY);
+            token(expr.operator);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            tag(VARIABLE);
+            token(expr.name);
+            return null;
+        }
+
+        private void token(Token token) {
+            tag((byte)token.type.ordinal());
+            string(token.lexeme);
+            writeInt(token.line);
+        }
+
+        private void string(String string) {
+            Integer index = strings.get(string);
+            if (index == null) {
+                index = strings.size();
+                strings.put(string, index);
+            }
+            writeInt(index);
+        }
+
+        private void tag(byte tag) {
+            try {
+                out.writeByte(tag);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeInt(int value) {
+            try {
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static class Reader {
+        private final ByteBuffer in;
+        private final String[] strings;
+        private final Symbols table;
+
+        // Symbol ids of the strings used as identifier names.
+        private final Map<Integer, Integer> symbols = new HashMap<>();
+
+        Reader(ByteBuffer in, Symbols table) {
+            this.in = in;
+            this.table = table;
+
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                throw new IllegalArgumentException("Not a cache entry.");
+            }
+
+            strings = new String[in.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] utf8 = new byte[in.getInt()];
+                in.get(utf8);
+                strings[i] = new String(utf8, StandardCharsets.UTF_8);
+            }
+        }
+
+        List<Stmt> read() {
+            int count = in.getInt();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                statements.add(statement());
+            }
+
+            if (in.hasRemaining()) {
+                throw new IllegalArgumentException("Trailing bytes.");
+            }
+            return statements;
+        }
+
+        // NULL stands for a missing else branch or initializer, and is
+        // only read where one of those can be. Anywhere else the entry is
+        // damaged, and would give the interpreter a null node.
+        private Stmt optionalStatement() {
+            if (in.get(in.position()) != NULL) return statement();
+            in.get();
+            return null;
+        }
+
+        private Expr optionalExpression() {
+            if (in.get(in.position()) != NULL) return expression();
+            in.get();
+            return null;
+        }
+
+        private Stmt statement() {
+            byte tag = in.get();
+            switch (tag) {
+                case BLOCK: {
+                    int count = in.getInt();
+                    List<Stmt> statements = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        statements.add(statement());
+                    }
+                    return new Stmt.Block(statements);
+                }
+                case EXPRESSION: return new Stmt.Expression(expression());
+                case IF:
+                    return new Stmt.If(expression(), statement(), optionalStatement());
+                case PRINT: return new Stmt.Print(expression());
+                case VAR: return new Stmt.Var(token(), optionalExpression());
+                case WHILE: return new Stmt.While(expression(), statement());
+            }
+
+            throw new IllegalArgumentException("Unknown statement " + tag + ".");
+        }
+
+        // Java evaluates arguments left to right, which is the order the
+        // writer wrote them in.
+        private Expr expression() {
+            byte tag = in.get();
+            switch (tag) {
+                case ASSIGN: return new Expr.Assign(token(), expression());
+                case TERNARY: {
+                    Token operator = token();
+                    return new Expr.Ternary(
+                        expression(), operator, expression(), expression());
+                }
+                case BINARY: {
+                    Token operator = token();
+                    return new Expr.Binary(expression(), operator, expression());
+                }
+                case GROUPING: return new Expr.Grouping(expression());
+                case LITERAL: return new Expr.Literal(literal());
+                case LOGICAL: {
+                    Token operator = token();
+                    return new Expr.Logical(expression(), operator, expression());
+                }
+                case UNARY: return new Expr.Unary(token(), expression());
+                case VARIABLE: return new Expr.Variable(token());
+            }
+
+            throw new IllegalArgumentException("Unknown expression " + tag + ".");
+        }
+
+        private Object literal() {
+            byte tag = in.get();
+            switch (tag) {
+                case NIL: return null;
+                case TRUE: return true;
+                case FALSE: return false;
+                case NUMBER: return in.getDouble();
+                case STRING: return strings[in.getInt()];
+            }
+
+            throw new IllegalArgumentException("Unknown literal " + tag + ".");
+        }
+
+        private Token token() {
+            TokenType type = TYPES[in.get()];
+            int lexeme = in.getInt();
+            int line = in.getInt();
+
+            int symbol = -1;
+            if (type == TokenType.IDENTIFIER) {
+                symbol = symbols.computeIfAbsent(lexeme,
+                    index -> table.intern(strings[index]));
+            }
+            return new Token(type, strings[lexeme], null, line, symbol);
+        }
+    }
+}
@@ -1,14 +1,67 @@
 package com.boxfort.jlox;
 
 // Creates an unambiguous, if ugly, string representation of AST nodes.
-public class AstPrinter implements Expr.Visitor<String> {
+public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
     String print(Expr expr) {
         return expr.accept(this);
     }
 
+    String print(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    @Override
+    public String visitBlockStmt(Stmt.Block stmt) {
+        StringBuilder builder = new StringBuilder();
+
+        builder.append("(block");
+        for (Stmt statement : stmt.statements) {
+            builder.append(" ");
+            builder.append(statement.accept(this));
+        }
+        builder.append(")");
+
+        return builder.toString();
+    }
+
+    @Override
+    public String visitExpressionStmt(Stmt.Expression stmt) {
+        return format(";", stmt.expression);
+    }
+
+    @Override
+    public String visitIfStmt(Stmt.If stmt) {
+        String branches = stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) {
+            branches += " " + stmt.elseBranch.accept(this);
+        }
+
+        return "(if " + print(stmt.condition) + " " + branches + ")";
+    }
+
+    @Override
+    public String visitPrintStmt(Stmt.Print stmt) {
+        return format("print", stmt.expression);
+    }
+
+    @Override
+    public String visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) {
+            return format("var " + stmt.name.lexeme);
+        }
+
+        return format("var " + stmt.name.lexeme, stmt.initializer);
+    }
+
+    @Override
+    public String visitWhileStmt(Stmt.While stmt) {
+        return "(while " + print(stmt.condition) + " " +
+            stmt.body.accept(this) + ")";
+    }
+
     @Override
     public String visitAssignExpr(Expr.Assign expr) {
-        return format("assign", expr.value);
+        return format("assign " + expr.name.lexeme, expr.value);
     }
 
     @Override
@@ -0,0 +1,168 @@
+package com.boxfort.jlox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Runs many scripts at once for --batch, in one JVM. Scripts are run
+// on a ForkJoinPool, so idle threads steal waiting scripts from busy
+// ones, and each runs in its own interpreter with its output held in
+// memory. Their output and errors are then written out whole, in the
+// order the scripts were given, as soon as every script before them
+// has been written, so the result doesn't depend on which finished
+// first.
+class BatchRunner {
+    // How many of the slowest scripts the report lists.
+    private static final int SLOWEST = 5;
+
+    private static class Script {
+        final Path path;
+        final List<String> output = new ArrayList<>();
+        List<String> errors;
+        int exitCode;
+        long nanos;
+
+        Script(Path path) {
+            this.path = path;
+        }
+    }
+
+    private final JloxEngine engine;
+    private final ForkJoinPool pool;
+
+    BatchRunner(JloxEngine engine, ForkJoinPool pool) {
+        this.engine = engine;
+        this.pool = pool;
+    }
+
+    // The scripts a --batch argument names. A directory means every .lox
+    // file under it, sorted by path. Anything else is a manifest listing
+    // one script per line, relative to the manifest's directory, with
+    // blank lines and lines starting with # skipped.
+    static List<Path> scripts(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.walk(path)) {
+                return files
+                    .filter(file -> Files.isRegularFile(file))
+                    .filter(file -> file.toString().endsWith(".lox"))
+                    .sorted()
+                    .collect(Collectors.toList());
+            }
+        }
+
+        Path directory = path.toAbsolutePath().getParent();
+        List<Path> scripts = new ArrayList<>();
+        for (String line : Files.readAllLines(path, Charset.defaultCharset())) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            scripts.add(directory.resolve(line).normalize());
+        }
+        return scripts;
+    }
+
+    // Runs the scripts, writing what each printed to output and its
+    // errors to errors, followed by a summary on report. Returns the
+    // exit code of the first script that failed, or 0 if none did.
+    int run(List<Path> paths, OutputSink output, PrintStream errors,
+            PrintStream report) {
+        long start = System.nanoTime();
+
+        List<ForkJoinTask<Script>> tasks = new ArrayList<>();
+        for (Path path : paths) {
+            tasks.add(pool.submit(() -> run(new Script(path))));
+        }
+
+        List<Script> scripts = new ArrayList<>();
+        int exitCode = 0;
+        for (ForkJoinTask<Script> task : tasks) {
+            Script script = task.join();
+            scripts.add(script);
+
+            for (String line : script.output) {
+                output.println(line);
+            }
+            output.flush();
+            for (String error : script.errors) {
+                errors.println(error);
+            }
+
+            if (exitCode == 0) exitCode = script.exitCode;
+        }
+
+        report(scripts, System.nanoTime() - start, report);
+        return exitCode;
+    }
+
+    private Script run(Script script) {
+        long start = System.nanoTime();
+
+        String source;
+        try {
+            source = new String(Files.readAllBytes(script.path),
+                Charset.defaultCharset());
+        } catch (IOException e) {
+            // EX_NOINPUT, as sysexits.h has it.
+            script.errors = List.of("Could not read " + script.path +
+                " (" + e.getClass().getSimpleName() + ").");
+            script.exitCode = 66;
+            script.nanos = System.nanoTime() - start;
+            return script;
+        }
+
+        JloxEngine.Result result = engine.run(source, script.output::add);
+        script.errors = result.errors();
+        script.exitCode = result.exitCode();
+        script.nanos = System.nanoTime() - start;
+        return script;
+    }
+
+    private void report(List<Script> scripts, long nanos, PrintStream out) {
+        long busy = 0;
+        int passed = 0;
+        int syntaxErrors = 0;
+        int runtimeErrors = 0;
+        int unreadable = 0;
+        for (Script script : scripts) {
+            busy += script.nanos;
+            switch (script.exitCode) {
+                case 0: passed++; break;
+                case 65: syntaxErrors++; break;
+                case 70: runtimeErrors++; break;
+                default: unreadable++; break;
+            }
+        }
+
+        out.println("Batch:");
+        out.printf("  %-12s %10d%n", "scripts", scripts.size());
+        out.printf("  %-12s %10d%n", "passed", passed);
+        out.printf("  %-12s %10d%n", "exit 65", syntaxErrors);
+        out.printf("  %-12s %10d%n", "exit 70", runtimeErrors);
+        if (unreadable > 0) out.printf("  %-12s %10d%n", "unreadable", unreadable);
+        out.printf("  %-12s %10d%n", "threads", pool.getParallelism());
+        out.printf("  %-12s %10.3f ms%n", "wall", nanos / 1e6);
+        out.printf("  %-12s %10.3f ms%n", "busy", busy / 1e6);
+        out.printf("  %-12s %10.3f ms%n", "average",
+            scripts.isEmpty() ? 0.0 : busy / 1e6 / scripts.size());
+
+        List<Script> slowest = scripts.stream()
+            .sorted(Comparator.comparingLong((Script script) -> script.nanos).reversed())
+            .limit(SLOWEST)
+            .collect(Collectors.toList());
+        if (slowest.isEmpty()) return;
+
+        out.println("Slowest:");
+        for (Script script : slowest) {
+            out.printf("  %10.3f ms  %3d  %s%n",
+                script.nanos / 1e6, script.exitCode, script.path);
+        }
+    }
+}
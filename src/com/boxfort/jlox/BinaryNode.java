@@ -0,0 +1,182 @@
+package com.boxfort.jlox;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// The execution strategy of an Expr.Binary. Every node starts out
+// uninitialized and rewrites itself on first execution into a node
+// specialized for the operand types it saw: numbers, strings, or a
+// generic node once the expression goes polymorphic. Specialized nodes
+// skip the operator switch and most of the type checks of
+// Interpreter.binary().
+abstract class BinaryNode {
+    static final BinaryNode UNINITIALIZED = new Uninitialized();
+
+    private static final LongAdder numberRewrites = new LongAdder();
+    private static final LongAdder stringRewrites = new LongAdder();
+    private static final LongAdder genericRewrites = new LongAdder();
+
+    abstract Object execute(Expr.Binary expr, Object left, Object right);
+
+    // Whether the node has only seen numbers so far, used by the loop
+    // compiler to decide what to speculate on.
+    boolean isNumeric() {
+        return false;
+    }
+
+    static long numberRewrites() {
+        return numberRewrites.sum();
+    }
+
+    static long stringRewrites() {
+        return stringRewrites.sum();
+    }
+
+    static long genericRewrites() {
+        return genericRewrites.sum();
+    }
+
+    static String stats() {
+        return "Binary node rewrites: " + numberRewrites() + " number, " +
+            stringRewrites() + " string, " + genericRewrites() + " generic.";
+    }
+
+    private static Object rewrite(
+        Expr.Binary expr, BinaryNode node, LongAdder counter,
+        Object left, Object right)
+    {
+        expr.node = node;
+        counter.increment();
+        return node.execute(expr, left, right);
+    }
+
+    private static Object generalize(Expr.Binary expr, Object left, Object right) {
+        return rewrite(expr, GENERIC, genericRewrites, left, right);
+    }
+
+    private static class Uninitialized extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                BinaryNode node = numberNode(expr.operator.type);
+                if (node != null) {
+                    return rewrite(expr, node, numberRewrites, left, right);
+                }
+            }
+
+            if (Values.isString(left) && Values.isString(right) &&
+                expr.operator.type == TokenType.PLUS) {
+                return rewrite(expr, CONCATENATE, stringRewrites, left, right);
+            }
+
+            return generalize(expr, left, right);
+        }
+
+        private static BinaryNode numberNode(TokenType operator) {
+            switch (operator) {
+                case PLUS: return ADD;
+                case MINUS: return SUBTRACT;
+                case STAR: return MULTIPLY;
+                case SLASH: return DIVIDE;
+                case GREATER: return GREATER;
+                case GREATER_EQUAL: return GREATER_EQUAL;
+                case LESS: return LESS;
+                case LESS_EQUAL: return LESS_EQUAL;
+                default: return null;
+            }
+        }
+    }
+
+    private abstract static class NumberNode extends BinaryNode {
+        @Override
+        final Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return execute(expr, (double)left, (double)right);
+            }
+
+            return generalize(expr, left, right);
+        }
+
+        abstract Object execute(Expr.Binary expr, double left, double right);
+
+        @Override
+        boolean isNumeric() {
+            return true;
+        }
+    }
+
+    private static final BinaryNode ADD = new NumberNode() {
+        @Override
+        Object execute(Expr.Binary expr, double left, double right) {
+            return left + right;
+        }
+    };
+
+    private static final BinaryNode SUBTRACT = new NumberNode() {
+        @Override
+        Object execute(Expr.Binary expr, double left, double right) {
+            return left - right;
+        }
+    };
+
+    private static final BinaryNode MULTIPLY = new NumberNode() {
+        @Override
+        Object execute(Expr.Binary expr, double left, double right) {
+            return left * right;
+        }
+    };
+
+    private static final BinaryNode DIVIDE = new NumberNode() {
+        @Override
+        Object execute(Expr.Binary expr, double left, double right) {
+            // Let the interpreter report division by zero.
+            if (right == 0) return Interpreter.binary(expr.operator, left, right);
+            return left / right;
+        }
+    };
+
+    private static final BinaryNode GREATER = new NumberNode() {
+        @Override
+        Object execute(Expr.Binary expr, double left, double right) {
+            return left > right;
+        }
+    };
+
+    private static final BinaryNode GREATER_EQUAL = new NumberNode() {
+        @Override
+        Object execute(Expr.Binary expr, double left, double right) {
+            return left >= right;
+        }
+    };
+
+    private static final BinaryNode LESS = new NumberNode() {
+        @Override
+        Object execute(Expr.Binary expr, double left, double right) {
+            return left < right;
+        }
+    };
+
+    private static final BinaryNode LESS_EQUAL = new NumberNode() {
+        @Override
+        Object execute(Expr.Binary expr, double left, double right) {
+            return left <= right;
+        }
+    };
+
+    private static final BinaryNode CONCATENATE = new BinaryNode() {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (Values.isString(left) && Values.isString(right)) {
+                return Values.concat(left, right);
+            }
+
+            return generalize(expr, left, right);
+        }
+    };
+
+    private static final BinaryNode GENERIC = new BinaryNode() {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            return Interpreter.binary(expr.operator, left, right);
+        }
+    };
+}
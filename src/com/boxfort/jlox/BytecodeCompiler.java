@@ -0,0 +1,314 @@
+package com.boxfort.jlox;
+
+import com.boxfort.jlox.vm.Chunk;
+import com.boxfort.jlox.vm.OpCode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Compiles resolved statements into a Chunk for the VM. Locals live on
+// the VM stack: each block's variables occupy consecutive stack slots
+// starting at the stack height when the block was entered, so the
+// Resolver's (depth, slot) pairs map directly onto stack offsets.
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final Chunk chunk = new Chunk();
+
+    // Stack offset of the first local of each enclosing block.
+    private final List<Integer> blockBases = new ArrayList<>();
+    private int stackDepth = 0;
+    private int maxStackDepth = 0;
+    private int line = 1;
+    private final ErrorReporter reporter;
+
+    BytecodeCompiler(ErrorReporter reporter) {
+        this.reporter = reporter;
+    }
+
+    Chunk compile(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        emit(OpCode.RETURN, 0);
+
+        chunk.setMaxStack(maxStackDepth);
+        return chunk;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.size == 0) {
+            for (Stmt statement : stmt.statements) {
+                compile(statement);
+            }
+            return null;
+        }
+
+        blockBases.add(stackDepth);
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        blockBases.remove(blockBases.size() - 1);
+
+        emitShort(OpCode.POPN, stmt.size, -stmt.size);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(OpCode.POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP, -1);
+        compile(stmt.thenBranch);
+        int elseJump = emitJump(OpCode.JUMP);
+
+        // The condition is still on the stack when jumping to the else.
+        patchJump(thenJump);
+        stackDepth++;
+        emit(OpCode.POP, -1);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(OpCode.PRINT, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.line;
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(OpCode.NIL, 1);
+        }
+
+        // A local's initial value is simply left in its stack slot. A
+        // local declared again in the same block already has one, so
+        // the value is stored there instead.
+        if (stmt.slot == -1) {
+            emitShort(OpCode.DEFINE_GLOBAL, nameConstant(stmt.name), -1);
+        } else if (stackSlot(0, stmt.slot) != stackDepth - 1) {
+            emitShort(OpCode.SET_LOCAL, stackSlot(0, stmt.slot), 0);
+            emit(OpCode.POP, -1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = chunk.count();
+        compile(stmt.condition);
+
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP, -1);
+        compile(stmt.body);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        stackDepth++;
+        emit(OpCode.POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+
+        line = expr.name.line;
+        if (expr.depth == -1) {
+            emitShort(OpCode.SET_GLOBAL, nameConstant(expr.name), 0);
+        } else {
+            emitShort(OpCode.SET_LOCAL, stackSlot(expr.depth, expr.slot), 0);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        // All three operands are evaluated, as in the Interpreter.
+        compile(expr.condition);
+        compile(expr.left);
+        compile(expr.right);
+
+        line = expr.operator.line;
+        emit(OpCode.TERNARY, -2);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+
+        if (expr.operator.type == TokenType.COMMA) {
+            emit(OpCode.POP, -1);
+            compile(expr.right);
+            return null;
+        }
+
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG_EQUAL: emit(OpCode.NOT_EQUAL, -1); break;
+            case EQUAL_EQUAL: emit(OpCode.EQUAL, -1); break;
+            case GREATER: emit(OpCode.GREATER, -1); break;
+            case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL, -1); break;
+            case LESS: emit(OpCode.LESS, -1); break;
+            case LESS_EQUAL: emit(OpCode.LESS_EQUAL, -1); break;
+            case MINUS: emit(OpCode.SUBTRACT, -1); break;
+            case PLUS: emit(OpCode.ADD, -1); break;
+            case SLASH: emit(OpCode.DIVIDE, -1); break;
+            case STAR: emit(OpCode.MULTIPLY, -1); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(OpCode.NIL, 1);
+        } else if (expr.value.equals(true)) {
+            emit(OpCode.TRUE, 1);
+        } else if (expr.value.equals(false)) {
+            emit(OpCode.FALSE, 1);
+        } else {
+            emitShort(OpCode.CONSTANT, makeConstant(expr.value), 1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+
+        // The left operand stays on the stack as the result if it
+        // short-circuits, otherwise it's popped and replaced by the right.
+        int endJump;
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+        } else {
+            endJump = emitJump(OpCode.JUMP_IF_FALSE);
+        }
+
+        emit(OpCode.POP, -1);
+        compile(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case MINUS: emit(OpCode.NEGATE, 0); break;
+            case BANG: emit(OpCode.NOT, 0); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        if (expr.depth == -1) {
+            emitShort(OpCode.GET_GLOBAL, nameConstant(expr.name), 1);
+        } else {
+            emitShort(OpCode.GET_LOCAL, stackSlot(expr.depth, expr.slot), 1);
+        }
+        return null;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private int stackSlot(int depth, int slot) {
+        return blockBases.get(blockBases.size() - 1 - depth) + slot;
+    }
+
+    private int nameConstant(Token name) {
+        return makeConstant(name.lexeme);
+    }
+
+    private int makeConstant(Object value) {
+        int index = chunk.addConstant(value);
+        if (index == -1) {
+            reporter.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+
+        return index;
+    }
+
+    // Emits an instruction and tracks its effect on the stack height.
+    private void emit(byte op, int stackEffect) {
+        chunk.write(op, line);
+        adjustStack(stackEffect);
+    }
+
+    private void emitShort(byte op, int operand, int stackEffect) {
+        chunk.write(op, line);
+        chunk.writeShort(operand, line);
+        adjustStack(stackEffect);
+    }
+
+    // Emits a jump with a placeholder offset, returning the offset of
+    // the operand to be patched once the target is known.
+    private int emitJump(byte op) {
+        chunk.write(op, line);
+        chunk.writeShort(0xffff, line);
+        return chunk.count() - 2;
+    }
+
+    private void patchJump(int offset) {
+        // -2 to adjust for the jump offset itself.
+        int jump = chunk.count() - offset - 2;
+        if (jump > 0xffff) {
+            reporter.error(line, "Too much code to jump over.");
+        }
+
+        chunk.patchShort(offset, jump);
+    }
+
+    private void emitLoop(int loopStart) {
+        chunk.write(OpCode.LOOP, line);
+
+        // +2 to jump back over the loop offset itself.
+        int offset = chunk.count() - loopStart + 2;
+        if (offset > 0xffff) {
+            reporter.error(line, "Loop body too large.");
+        }
+
+        chunk.writeShort(offset, line);
+    }
+
+    private void adjustStack(int stackEffect) {
+        stackDepth += stackEffect;
+        if (stackDepth > maxStackDepth) maxStackDepth = stackDepth;
+    }
+}
@@ -0,0 +1,112 @@
+package com.boxfort.jlox;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Buffers output in memory and writes it to a channel in large blocks.
+// Unlike System.out it takes no lock and doesn't flush on every line,
+// so it must only be used from one thread at a time.
+public class ChannelSink implements OutputSink {
+    private static final int CAPACITY = 64 * 1024;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final WritableByteChannel channel;
+    private final CharsetEncoder encoder;
+    private final CharBuffer chars = CharBuffer.allocate(CAPACITY);
+    private final ByteBuffer bytes;
+
+    public ChannelSink(WritableByteChannel channel) {
+        this.channel = channel;
+        this.encoder = Charset.defaultCharset().newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.bytes = ByteBuffer.allocate(
+            (int)(CAPACITY * encoder.maxBytesPerChar()));
+    }
+
+    // Writes to the standard output stream, bypassing System.out.
+    public static ChannelSink stdout() {
+        return new ChannelSink(Channels.newChannel(
+            new FileOutputStream(FileDescriptor.out)));
+    }
+
+    // Writes to the file at path, replacing its contents.
+    public static ChannelSink file(Path path) throws IOException {
+        return new ChannelSink(FileChannel.open(path,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    @Override
+    public void println(String line) {
+        append(line);
+        append(LINE_SEPARATOR);
+    }
+
+    // Numbers are formatted straight into the buffer where possible.
+    @Override
+    public void printValue(Object value) {
+        if (value instanceof Double) {
+            if (chars.remaining() < NumberFormatter.MAX_LENGTH) drain();
+
+            int offset = chars.arrayOffset();
+            int end = NumberFormatter.format(
+                (double)value, chars.array(), offset + chars.position());
+            if (end != -1) {
+                chars.position(end - offset);
+                append(LINE_SEPARATOR);
+                return;
+            }
+        }
+
+        println(Values.stringify(value));
+    }
+
+    private void append(String text) {
+        int offset = 0;
+        while (offset < text.length()) {
+            if (!chars.hasRemaining()) drain();
+
+            int count = Math.min(chars.remaining(), text.length() - offset);
+            chars.put(text, offset, offset + count);
+            offset += count;
+        }
+    }
+
+    @Override
+    public void flush() {
+        drain();
+    }
+
+    // Encodes the buffered characters and writes them to the channel.
+    // A surrogate pair split at the end of the buffer is kept for the
+    // next drain.
+    private void drain() {
+        chars.flip();
+        encoder.encode(chars, bytes, false);
+        chars.compact();
+
+        bytes.flip();
+        try {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            bytes.clear();
+        }
+    }
+}
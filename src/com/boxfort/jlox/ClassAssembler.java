@@ -0,0 +1,370 @@
+package com.boxfort.jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of a JVM class file writer for the loop JIT. Classes are
+// written as version 49 (Java 5) so the verifier infers types itself
+// and no StackMapTable frames have to be computed.
+class ClassAssembler {
+    private static final int VERSION = 49;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndices = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final List<Integer> interfaces = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    ClassAssembler(String name, String superName, String... interfaceNames) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        for (String interfaceName : interfaceNames) {
+            interfaces.add(classRef(interfaceName));
+        }
+    }
+
+    Method method(int access, String name, String descriptor) {
+        return new Method(access, name, descriptor);
+    }
+
+    byte[] toByteArray() throws ClassTooLargeException {
+        // Indices past this were handed out, but can't be written.
+        if (poolCount > 0xffff) {
+            throw new ClassTooLargeException("Constant pool too large.");
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.size());
+            for (int index : interfaces) out.writeShort(index);
+            out.writeShort(0); // Fields.
+            out.writeShort(methods.size());
+            for (byte[] method : methods) out.write(method);
+            out.writeShort(0); // Attributes.
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Constant pool.
+
+    private int utf8(String value) {
+        return constant("U" + value, 1, out -> out.writeUTF(value));
+    }
+
+    private int classRef(String name) {
+        int nameIndex = utf8(name);
+        return constant("C" + name, 7, out -> out.writeShort(nameIndex));
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        int nameIndex = utf8(name);
+        int typeIndex = utf8(descriptor);
+        return constant("N" + name + " " + descriptor, 12, out -> {
+            out.writeShort(nameIndex);
+            out.writeShort(typeIndex);
+        });
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int classIndex = classRef(owner);
+        int typeIndex = nameAndType(name, descriptor);
+        return constant(tag + owner + "." + name + descriptor, tag, out -> {
+            out.writeShort(classIndex);
+            out.writeShort(typeIndex);
+        });
+    }
+
+    private int integer(int value) {
+        return constant("I" + value, 3, out -> out.writeInt(value));
+    }
+
+    private interface Entry {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int constant(String key, int tag, Entry entry) {
+        Integer index = poolIndices.get(key);
+        if (index != null) return index;
+
+        try {
+            poolOut.writeByte(tag);
+            entry.write(poolOut);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        poolIndices.put(key, poolCount);
+        return poolCount++;
+    }
+
+    static class Label {
+        private int offset = -1;
+        private int stackDepth = -1;
+        private final List<Integer> references = new ArrayList<>();
+    }
+
+    // Assembles the code of a single method. The maximum stack depth
+    // is tracked as instructions are emitted.
+    class Method {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private int stackDepth = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+
+        private Method(int access, String name, String descriptor) {
+            this.access = access;
+            this.name = utf8(name);
+            this.descriptor = utf8(descriptor);
+            this.maxLocals = argumentSlots(descriptor) +
+                ((access & ACC_STATIC) != 0 ? 0 : 1);
+        }
+
+        // Emits an instruction with no operands.
+        void op(int opcode, int stackEffect) {
+            code.write(opcode);
+            adjustStack(stackEffect);
+        }
+
+        void aload(int index) {
+            local(0x19, index, 1);
+        }
+
+        void astore(int index) {
+            local(0x3a, index, -1);
+        }
+
+        void dload(int index) {
+            local(0x18, index, 2);
+        }
+
+        void dstore(int index) {
+            local(0x39, index, -2);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                op(0x03 + value, 1);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                code.write(0x11); // sipush
+                writeShort(value);
+                adjustStack(1);
+            } else {
+                code.write(0x13); // ldc_w
+                writeShort(integer(value));
+                adjustStack(1);
+            }
+        }
+
+        void type(int opcode, String className) {
+            code.write(opcode);
+            writeShort(classRef(className));
+            // new pushes a reference, checkcast and instanceof replace one.
+            adjustStack(opcode == Opcodes.NEW ? 1 : 0);
+        }
+
+        void field(int opcode, String owner, String name, String descriptor) {
+            code.write(opcode);
+            writeShort(memberRef(9, owner, name, descriptor));
+
+            int size = typeSize(descriptor.charAt(0));
+            adjustStack(opcode == Opcodes.GETSTATIC ? size : size - 1);
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            boolean isInterface = opcode == Opcodes.INVOKEINTERFACE;
+            code.write(opcode);
+            writeShort(memberRef(isInterface ? 11 : 10, owner, name, descriptor));
+
+            int arguments = argumentSlots(descriptor);
+            if (opcode != Opcodes.INVOKESTATIC) arguments++;
+            if (isInterface) {
+                code.write(arguments);
+                code.write(0);
+            }
+
+            char returnType = descriptor.charAt(descriptor.indexOf(')') + 1);
+            adjustStack(typeSize(returnType) - arguments);
+        }
+
+        void jump(int opcode, Label label) {
+            int stackEffect = opcode == Opcodes.GOTO ? 0 : -1;
+            adjustStack(stackEffect);
+            label.stackDepth = stackDepth;
+
+            label.references.add(code.size());
+            code.write(opcode);
+            writeShort(0);
+
+            // Nothing falls through an unconditional jump, the depth is
+            // re-established when the next label is bound.
+            if (opcode == Opcodes.GOTO) stackDepth = -1;
+        }
+
+        void bind(Label label) {
+            label.offset = code.size();
+            if (label.stackDepth != -1) stackDepth = label.stackDepth;
+        }
+
+        int newLocal(int size) {
+            int index = maxLocals;
+            maxLocals += size;
+            return index;
+        }
+
+        void finish() throws ClassTooLargeException {
+            byte[] bytes = code.toByteArray();
+            if (bytes.length > 0xffff) {
+                throw new ClassTooLargeException("Method too large.");
+            }
+
+            // Patch the jump offsets now every label is bound.
+            List<Label> labels = new ArrayList<>(allLabels);
+            for (Label label : labels) {
+                for (int reference : label.references) {
+                    int offset = label.offset - reference;
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                        throw new ClassTooLargeException("Jump too far.");
+                    }
+                    bytes[reference + 1] = (byte)(offset >> 8);
+                    bytes[reference + 2] = (byte)offset;
+                }
+            }
+
+            try {
+                ByteArrayOutputStream method = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(method);
+                out.writeShort(access);
+                out.writeShort(name);
+                out.writeShort(descriptor);
+                out.writeShort(1);
+                out.writeShort(utf8("Code"));
+                out.writeInt(12 + bytes.length);
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.writeShort(0); // Exception table.
+                out.writeShort(0); // Attributes.
+                methods.add(method.toByteArray());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private final List<Label> allLabels = new ArrayList<>();
+
+        Label newLabel() {
+            Label label = new Label();
+            allLabels.add(label);
+            return label;
+        }
+
+        private void local(int opcode, int index, int stackEffect) {
+            if (index > 0xff) {
+                code.write(0xc4); // wide
+                code.write(opcode);
+                writeShort(index);
+            } else {
+                code.write(opcode);
+                code.write(index);
+            }
+            adjustStack(stackEffect);
+        }
+
+        private void writeShort(int value) {
+            code.write((value >> 8) & 0xff);
+            code.write(value & 0xff);
+        }
+
+        private void adjustStack(int stackEffect) {
+            stackDepth += stackEffect;
+            if (stackDepth > maxStack) maxStack = stackDepth;
+        }
+    }
+
+    // Opcodes used by the loop compiler.
+    static final class Opcodes {
+        static final int ACONST_NULL = 0x01;
+        static final int ICONST_0 = 0x03;
+        static final int ICONST_1 = 0x04;
+        static final int DCONST_0 = 0x0e;
+        static final int AALOAD = 0x32;
+        static final int POP = 0x57;
+        static final int DUP = 0x59;
+        static final int DADD = 0x63;
+        static final int DSUB = 0x67;
+        static final int DMUL = 0x6b;
+        static final int DDIV = 0x6f;
+        static final int DNEG = 0x77;
+        static final int DCMPL = 0x97;
+        static final int DCMPG = 0x98;
+        static final int IFEQ = 0x99;
+        static final int IFNE = 0x9a;
+        static final int IFLT = 0x9b;
+        static final int IFGE = 0x9c;
+        static final int IFGT = 0x9d;
+        static final int IFLE = 0x9e;
+        static final int GOTO = 0xa7;
+        static final int IRETURN = 0xac;
+        static final int RETURN = 0xb1;
+        static final int GETSTATIC = 0xb2;
+        static final int GETFIELD = 0xb4;
+        static final int INVOKEVIRTUAL = 0xb6;
+        static final int INVOKESPECIAL = 0xb7;
+        static final int INVOKESTATIC = 0xb8;
+        static final int INVOKEINTERFACE = 0xb9;
+        static final int NEW = 0xbb;
+        static final int CHECKCAST = 0xc0;
+        static final int INSTANCEOF = 0xc1;
+    }
+
+    private static int argumentSlots(String descriptor) {
+        int slots = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            while (c == '[') c = descriptor.charAt(++i);
+            if (c == 'L') i = descriptor.indexOf(';', i);
+            slots += (c == 'D' || c == 'J') && descriptor.charAt(i - 1) != '[' ? 2 : 1;
+            i++;
+        }
+        return slots;
+    }
+
+    private static int typeSize(char type) {
+        switch (type) {
+            case 'V': return 0;
+            case 'D':
+            case 'J': return 2;
+            default: return 1;
+        }
+    }
+}
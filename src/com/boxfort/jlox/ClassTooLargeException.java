@@ -0,0 +1,10 @@
+package com.boxfort.jlox;
+
+// Thrown by ClassAssembler when a class exceeds one of the limits of
+// the class file format, such as 64K of code in a method. The LoopJit
+// catches it to keep interpreting loops too big to compile.
+class ClassTooLargeException extends Exception {
+    ClassTooLargeException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,80 @@
+package com.boxfort.jlox;
+
+// A while loop compiled into a hidden JVM class by the LoopCompiler.
+// The generated code speculates that arithmetic and comparisons only
+// ever see numbers. When that doesn't hold it takes a slow path with
+// the Interpreter's semantics and invalidates the loop, which then
+// returns to the tree-walker at the end of the current iteration.
+final class CompiledLoop {
+    interface Code {
+        // Returns true if the loop ran to completion, or false if it
+        // was deoptimized and the caller must carry on interpreting.
+        boolean run(Interpreter interpreter, Environment environment,
+                    Object[] constants, CompiledLoop loop);
+    }
+
+    private final Code code;
+    private final Object[] constants;
+    private boolean invalidated = false;
+
+    CompiledLoop(Code code, Object[] constants) {
+        this.code = code;
+        this.constants = constants;
+    }
+
+    boolean run(Interpreter interpreter, Environment environment) {
+        return code.run(interpreter, environment, constants, this);
+    }
+
+    boolean isInvalidated() {
+        return invalidated;
+    }
+
+    // Slow paths, taken when the number speculation fails.
+
+    Object slowBinary(Object left, Object right, Token operator) {
+        invalidated = true;
+        return Interpreter.binary(operator, left, right);
+    }
+
+    Object slowUnary(Object right, Token operator) {
+        invalidated = true;
+        return Interpreter.unary(operator, right);
+    }
+
+    // Helpers for operations that aren't worth inlining.
+
+    static Object binary(Object left, Object right, Token operator) {
+        return Interpreter.binary(operator, left, right);
+    }
+
+    static Object isEqual(Object left, Object right) {
+        return Values.isEqual(left, right);
+    }
+
+    static Object isNotEqual(Object left, Object right) {
+        return !Values.isEqual(left, right);
+    }
+
+    static Object not(Object right) {
+        return !Values.isTruthy(right);
+    }
+
+    static Object ternary(
+        Object condition, Object left, Object right, Token operator)
+    {
+        return Interpreter.ternary(operator, condition, left, right);
+    }
+
+    static Object assignAt(
+        Environment environment, int depth, int slot, Object value)
+    {
+        environment.assignAt(depth, slot, value);
+        return value;
+    }
+
+    static Object assignGlobal(Environment globals, Token name, Object value) {
+        globals.assign(name, value);
+        return value;
+    }
+}
@@ -0,0 +1,267 @@
+package com.boxfort.jlox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+
+// Runs scripts sent over a Unix domain socket for --daemon. The JVM
+// stays up between scripts, so each one skips starting it and runs on
+// code the JIT has already compiled. JloxClient is the other end.
+//
+// A client sends one request per connection: MAGIC, then PATH and the
+// absolute path of a script, or SOURCE and the script itself, each as
+// a length-prefixed UTF-8 string. The daemon answers with frames of a
+// tag byte and a length-prefixed UTF-8 string: OUTPUT frames holding
+// printed lines as they're flushed, ERROR frames holding one error
+// message each, and last an EXIT frame holding just the exit code.
+//
+// Each script runs in an interpreter of its own, on a thread of its
+// own, so clients can't see each other. Compiled programs are kept in
+// a ProgramCache, so scripts that haven't changed aren't parsed again.
+// Scripts that run for longer than TIMEOUT are stopped, so one stuck
+// in a loop doesn't hold on to its thread for good.
+class Daemon {
+    static final int MAGIC = 0x4a4c4f44; // "JLOD"
+
+    // Requests.
+    static final byte PATH = 1;
+    static final byte SOURCE = 2;
+
+    // Response frames.
+    static final byte OUTPUT = 1;
+    static final byte ERROR = 2;
+    static final byte EXIT = 3;
+
+    private static final int CACHE_SIZE = 256;
+    private static final Duration TIMEOUT = Duration.ofSeconds(
+        Long.getLong("jlox.daemon.timeout", 60));
+    // Longer requests are refused rather than read into memory.
+    private static final int MAX_REQUEST = 16 * 1024 * 1024;
+    // Output is sent once this much is buffered, or on a flush.
+    private static final int FRAME_SIZE = 8 * 1024;
+
+    // Writes printed lines to the client as OUTPUT frames.
+    private static class FrameSink implements OutputSink {
+        private final DataOutputStream out;
+        private final StringBuilder buffer = new StringBuilder();
+
+        FrameSink(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void println(String line) {
+            buffer.append(line).append('\n');
+            if (buffer.length() >= FRAME_SIZE) flush();
+        }
+
+        @Override
+        public void flush() {
+            if (buffer.length() == 0) return;
+
+            try {
+                frame(out, OUTPUT, buffer.toString());
+                out.flush();
+            } catch (IOException e) {
+                // Stops the script if the client has gone away.
+                throw new UncheckedIOException(e);
+            }
+            buffer.setLength(0);
+        }
+    }
+
+    private final Path socket;
+    private final JloxEngine engine;
+    private final ProgramCache cache;
+    // Unbounded, so a script that runs until its timeout doesn't keep
+    // other clients waiting for a thread.
+    private final ExecutorService executor =
+        JloxEngine.newUnboundedExecutor("jlox-daemon");
+
+    Daemon(Path socket, JloxEngine engine) {
+        this.socket = socket;
+        this.engine = engine;
+        this.cache = new ProgramCache(engine, CACHE_SIZE);
+    }
+
+    // Serves clients until the process is killed.
+    void serve() throws IOException {
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(socket);
+        removeStaleSocket(address);
+
+        try (ServerSocketChannel server = bind()) {
+            Runtime.getRuntime().addShutdownHook(new Thread(this::removeSocket));
+
+            System.err.println("Listening on " + socket + ".");
+            for (;;) {
+                SocketChannel client = server.accept();
+                executor.execute(() -> handle(client));
+            }
+        }
+    }
+
+    // Scripts can read any file the daemon can, so only its own user may
+    // connect. The socket is bound in a new directory only that user can
+    // enter, made private there and only then moved into place, so
+    // nobody else can ever reach it.
+    private ServerSocketChannel bind() throws IOException {
+        Path directory;
+        try {
+            directory = Files.createTempDirectory(
+                socket.toAbsolutePath().getParent(), ".jlox",
+                PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rwx------")));
+        } catch (UnsupportedOperationException e) {
+            throw new IOException("Can't make a socket private on this file system.");
+        }
+
+        // Short, as socket paths are limited to around 100 bytes.
+        Path bound = directory.resolve("s");
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            server.bind(UnixDomainSocketAddress.of(bound));
+            Files.setPosixFilePermissions(bound,
+                PosixFilePermissions.fromString("rw-------"));
+            Files.move(bound, socket, StandardCopyOption.ATOMIC_MOVE);
+            return server;
+        } catch (IOException | RuntimeException e) {
+            server.close();
+            throw e;
+        } finally {
+            Files.deleteIfExists(bound);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    // A socket file left behind by a daemon that was killed would stop
+    // this one binding, but one that's still answering is in use.
+    private void removeStaleSocket(UnixDomainSocketAddress address)
+            throws IOException {
+        if (!Files.exists(socket)) return;
+
+        boolean answering;
+        try {
+            SocketChannel.open(address).close();
+            answering = true;
+        } catch (IOException e) {
+            answering = false;
+        }
+
+        if (answering) {
+            throw new IOException("A daemon is already listening on " + socket + ".");
+        }
+        Files.deleteIfExists(socket);
+    }
+
+    private void removeSocket() {
+        try {
+            Files.deleteIfExists(socket);
+        } catch (IOException e) {
+            // Nothing more to do on the way out.
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        try (client) {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(client)));
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(client)));
+
+            if (in.readInt() != MAGIC) return;
+            byte kind = in.readByte();
+            String request = string(in, MAX_REQUEST);
+
+            String source;
+            if (kind == SOURCE) {
+                source = request;
+            } else if (kind == PATH) {
+                try {
+                    source = new String(Files.readAllBytes(Paths.get(request)),
+                        Charset.defaultCharset());
+                } catch (IOException e) {
+                    // EX_NOINPUT, as sysexits.h has it.
+                    frame(out, ERROR, "Could not read " + request +
+                        " (" + e.getClass().getSimpleName() + ").");
+                    exit(out, 66);
+                    return;
+                }
+            } else {
+                return;
+            }
+
+            FrameSink output = new FrameSink(out);
+            JloxEngine.Result result;
+            try {
+                result = engine.run(cache.get(source), output, TIMEOUT);
+            } catch (UncheckedIOException e) {
+                throw e;
+            } catch (RuntimeException | StackOverflowError e) {
+                // A bug in jlox, or a script nested too deeply. Either
+                // way the client should hear about it, and the daemon
+                // carry on.
+                output.flush();
+                frame(out, ERROR, "Internal error: " + e + ".");
+                exit(out, 70);
+                return;
+            }
+
+            for (String error : result.errors()) {
+                frame(out, ERROR, error);
+            }
+            exit(out, result.exitCode());
+        } catch (IOException | UncheckedIOException e) {
+            // The client went away or didn't speak the protocol.
+        }
+    }
+
+    private static void exit(DataOutputStream out, int code) throws IOException {
+        out.writeByte(EXIT);
+        out.writeInt(code);
+        out.flush();
+    }
+
+    static void frame(DataOutputStream out, byte tag, String text)
+            throws IOException {
+        out.writeByte(tag);
+        string(out, text);
+    }
+
+    static void string(DataOutputStream out, String text) throws IOException {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    static String string(DataInputStream in) throws IOException {
+        return string(in, Integer.MAX_VALUE);
+    }
+
+    // Fails without reading the string if it's longer than limit bytes.
+    static String string(DataInputStream in, int limit) throws IOException {
+        int length = in.readInt();
+        if (length < 0) throw new IOException("Bad length.");
+        if (length > limit) throw new IOException("Too long.");
+
+        byte[] utf8 = new byte[length];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+}
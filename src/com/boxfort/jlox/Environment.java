@@ -1,47 +1,150 @@
 package com.boxfort.jlox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
+// The global environment maps the symbol ids of names to slots as
+// globals may be referenced before they are defined. Every other
+// environment is a block scope whose variables the Resolver has
+// assigned fixed slots.
+//
+// Numbers assigned through the unboxed path are kept in a parallel
+// double[] with a marker in the Object[] slot. They are only boxed
+// when read through the generic path, and the box is then cached.
 public class Environment {
+    // Marks a slot whose value lives unboxed in numbers[].
+    private static final Object NUMBER = new Object();
+
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    private final IntMap globals;
+    private Object[] slots;
+    private double[] numbers;
 
     public Environment() {
         this.enclosing = null;
+        this.globals = new IntMap();
+        this.slots = new Object[16];
     }
 
-    public Environment(Environment enclosing) {
+    public Environment(Environment enclosing, int size) {
         this.enclosing = enclosing;
+        this.globals = null;
+        this.slots = new Object[size];
     }
 
     void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
+        slots[globalSlot(name)] = value;
+    }
+
+    void assignDouble(Token name, double value) {
+        setDouble(globalSlot(name), value);
+    }
+
+    void assignAt(int depth, int slot, Object value) {
+        ancestor(depth).slots[slot] = value;
+    }
+
+    void assignDoubleAt(int depth, int slot, double value) {
+        ancestor(depth).setDouble(slot, value);
+    }
+
+    void define(Token name, Object value) {
+        defineGlobal(name.symbol, value);
+    }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
+    void defineGlobal(int symbol, Object value) {
+        int slot = globals.get(symbol);
+        if (slot == -1) {
+            slot = globals.size();
+            globals.put(symbol, slot);
+            if (slot == slots.length) {
+                slots = Arrays.copyOf(slots, slot * 2);
+            }
         }
 
-        throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
+        slots[slot] = value;
     }
 
-    void define(String name, Object value) {
-        values.put(name, value);
+    void define(int slot, Object value) {
+        slots[slot] = value;
+    }
+
+    void defineDouble(int slot, double value) {
+        setDouble(slot, value);
     }
 
     Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+        return get(globalSlot(name));
+    }
+
+    double getDouble(Token name) throws UnexpectedResult {
+        return getDouble(globalSlot(name));
+    }
+
+    Object getAt(int depth, int slot) {
+        return ancestor(depth).get(slot);
+    }
+
+    double getDoubleAt(int depth, int slot) throws UnexpectedResult {
+        return ancestor(depth).getDouble(slot);
+    }
+
+    private Object get(int slot) {
+        Object value = slots[slot];
+        if (value == NUMBER) {
+            value = numbers[slot];
+            slots[slot] = value;
+        }
+
+        return value;
+    }
+
+    private double getDouble(int slot) throws UnexpectedResult {
+        Object value = slots[slot];
+        if (value == NUMBER) return numbers[slot];
+        if (value instanceof Double) return (double)value;
+
+        throw new UnexpectedResult(value);
+    }
+
+    private void setDouble(int slot, double value) {
+        if (numbers == null) {
+            numbers = new double[slots.length];
+        } else if (numbers.length <= slot) {
+            numbers = Arrays.copyOf(numbers, slots.length);
         }
 
-        if (enclosing != null) return enclosing.get(name);
+        numbers[slot] = value;
+        slots[slot] = NUMBER;
+    }
+
+    // The slot of the global with the given symbol id, to access with
+    // getAt() and assignAt() at depth 0, or -1 if it's not defined.
+    int globalSlot(int symbol) {
+        return globals.get(symbol);
+    }
+
+    // The symbol id of the global in each slot, so in the order they
+    // were first defined.
+    int[] globalSymbols() {
+        int[] symbols = new int[globals.size()];
+        globals.forEach((symbol, slot) -> symbols[slot] = symbol);
+        return symbols;
+    }
+
+    private int globalSlot(Token name) {
+        int slot = globalSlot(name.symbol);
+        if (slot != -1) return slot;
 
         throw new RuntimeError(name,
             "Undefined variable '" + name.lexeme + "'.");
     }
+
+    private Environment ancestor(int depth) {
+        Environment environment = this;
+        for (int i = 0; i < depth; i++) {
+            environment = environment.enclosing;
+        }
+
+        return environment;
+    }
 }
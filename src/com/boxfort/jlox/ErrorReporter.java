@@ -0,0 +1,71 @@
+package com.boxfort.jlox;
+
+// Reports the errors found scanning, parsing, resolving and running a
+// script, and remembers whether there were any to decide its exit
+// code. Every run of a script has its own, so any number can run side
+// by side.
+class ErrorReporter {
+    private final OutputSink output;
+    private final OutputSink messages;
+    private boolean hadError = false;
+    private boolean hadRuntimeError = false;
+    // Counts runtime errors when set, for --metrics.
+    Metrics metrics = null;
+
+    // Reports to standard error.
+    ErrorReporter() {
+        this(line -> {}, System.err::println);
+    }
+
+    // Writes each message to messages, flushing output first so that
+    // output and errors appear in the order they happened.
+    ErrorReporter(OutputSink output, OutputSink messages) {
+        this.output = output;
+        this.messages = messages;
+    }
+
+    boolean hadError() {
+        return hadError;
+    }
+
+    boolean hadRuntimeError() {
+        return hadRuntimeError;
+    }
+
+    // Forgets earlier syntax errors, so the REPL can carry on after one.
+    void clearError() {
+        hadError = false;
+    }
+
+    void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    void error(Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            report(token.line, " at end", message);
+        } else {
+            report(token.line, " at '" + token.lexeme + "'", message);
+        }
+    }
+
+    private void report(int line, String where, String message) {
+        output.flush();
+        messages.println("[line " + line + "] Error" + where + ": " + message);
+        hadError = true;
+    }
+
+    void runtimeError(RuntimeError error) {
+        runtimeError(error.getMessage(), error.token.line);
+    }
+
+    void runtimeError(String message, int line) {
+        output.flush();
+        messages.println(message + "\n[line " + line + "]");
+        hadRuntimeError = true;
+
+        if (metrics != null) metrics.runtimeErrors++;
+
+        if (Metrics.RECORDING) Events.error(message, line);
+    }
+}
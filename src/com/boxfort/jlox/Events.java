@@ -0,0 +1,140 @@
+package com.boxfort.jlox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Java Flight Recorder events for running scripts, recorded when jlox
+// runs with -XX:StartFlightRecording. Each phase of the pipeline is an
+// event, begun and ended by Metrics. Loading the event classes loads
+// much of JFR and registers them with it, which would take longer than
+// running a short script, so nothing here is touched unless
+// Metrics.RECORDING is set.
+final class Events {
+    private Events() {}
+
+    @Category("Lox")
+    @StackTrace(false)
+    abstract static class Phase extends Event {
+        // Records how many tokens or statements the phase handled.
+        void handled(int count) {}
+    }
+
+    @Name("com.boxfort.jlox.Scan")
+    @Label("Scan")
+    @Description("Scanning a script into tokens")
+    static final class Scan extends Phase {
+        @Label("Tokens")
+        int tokens;
+
+        @Override
+        void handled(int count) {
+            tokens = count;
+        }
+    }
+
+    @Name("com.boxfort.jlox.Parse")
+    @Label("Parse")
+    @Description("Parsing tokens into statements")
+    static final class Parse extends Phase {
+        @Label("Statements")
+        int statements;
+
+        @Override
+        void handled(int count) {
+            statements = count;
+        }
+    }
+
+    @Name("com.boxfort.jlox.Optimize")
+    @Label("Optimize")
+    @Description("Folding constants and hoisting loop invariants")
+    static final class Optimize extends Phase {
+        @Label("Statements")
+        int statements;
+
+        @Override
+        void handled(int count) {
+            statements = count;
+        }
+    }
+
+    @Name("com.boxfort.jlox.Resolve")
+    @Label("Resolve")
+    @Description("Binding variables to their declarations")
+    static final class Resolve extends Phase {
+        @Label("Statements")
+        int statements;
+
+        @Override
+        void handled(int count) {
+            statements = count;
+        }
+    }
+
+    @Name("com.boxfort.jlox.Interpret")
+    @Label("Interpret")
+    @Description("Running statements")
+    static final class Interpret extends Phase {
+        @Label("Statements")
+        int statements;
+
+        @Label("Engine")
+        String engine;
+
+        @Override
+        void handled(int count) {
+            statements = count;
+        }
+    }
+
+    @Name("com.boxfort.jlox.RuntimeError")
+    @Label("Runtime Error")
+    @Category("Lox")
+    @StackTrace(false)
+    static final class Error extends Event {
+        @Label("Message")
+        String message;
+
+        @Label("Line")
+        int line;
+    }
+
+    static Phase begin(Metrics.Phase phase, String engine) {
+        Phase event;
+        switch (phase) {
+            case SCAN: event = new Scan(); break;
+            case PARSE: event = new Parse(); break;
+            case OPTIMIZE: event = new Optimize(); break;
+            case RESOLVE: event = new Resolve(); break;
+            default: {
+                Interpret interpret = new Interpret();
+                interpret.engine = engine;
+                event = interpret;
+                break;
+            }
+        }
+        event.begin();
+        return event;
+    }
+
+    static void end(Phase event, int count) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.handled(count);
+            event.commit();
+        }
+    }
+
+    static void error(String message, int line) {
+        Error event = new Error();
+        if (event.shouldCommit()) {
+            event.message = message;
+            event.line = line;
+            event.commit();
+        }
+    }
+}
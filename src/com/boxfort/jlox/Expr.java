@@ -27,6 +27,8 @@ abstract class Expr {
 
         final Token name;
         final Expr value;
+        int depth = -1;
+        int slot = -1;
     }
 
     static class Ternary extends Expr {
@@ -63,6 +65,7 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        BinaryNode node = BinaryNode.UNINITIALIZED;
     }
 
     static class Grouping extends Expr {
@@ -134,6 +137,8 @@ abstract class Expr {
         }
 
         final Token name;
+        int depth = -1;
+        int slot = -1;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
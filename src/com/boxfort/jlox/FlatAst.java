@@ -0,0 +1,252 @@
+package com.boxfort.jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A resolved program stored as a struct of arrays instead of a tree of
+// node objects. Each node is an index into parallel int arrays holding
+// its kind, a datum, its line and up to three operands, so the whole
+// program is a handful of arrays however big it gets.
+//
+//   kind        data      a            b           c
+//   LITERAL     constant
+//   VARIABLE    symbol    depth        slot
+//   ASSIGN      symbol    value        depth       slot
+//   UNARY       operator  right
+//   BINARY      operator  left         right
+//   LOGICAL     operator  left         right
+//   TERNARY     operator  condition    left        right
+//   EXPRESSION            expression
+//   PRINT                 expression
+//   VAR         symbol    initializer  slot
+//   BLOCK                 first        count       size
+//   IF                    condition    then        else
+//   WHILE                 condition    body
+//
+// Operators are stored as TokenType ordinals and names as symbol ids,
+// with -1 for absent operands. A block's statements are a run of
+// entries in the lists array. Only operator and name nodes have a line,
+// from which with the type or symbol their token is recreated when a
+// runtime error or slow path needs one.
+//
+// Groupings are folded into their expression by the Optimizer, and are
+// otherwise stored as their inner expression.
+class FlatAst {
+    static final int LITERAL = 0;
+    static final int VARIABLE = 1;
+    static final int ASSIGN = 2;
+    static final int UNARY = 3;
+    static final int BINARY = 4;
+    static final int LOGICAL = 5;
+    static final int TERNARY = 6;
+    static final int EXPRESSION = 7;
+    static final int PRINT = 8;
+    static final int VAR = 9;
+    static final int BLOCK = 10;
+    static final int IF = 11;
+    static final int WHILE = 12;
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    int[] kinds = new int[1024];
+    int[] data = new int[1024];
+    int[] lines = new int[1024];
+    int[] a = new int[1024];
+    int[] b = new int[1024];
+    int[] c = new int[1024];
+    private int size = 0;
+
+    int[] lists = new int[256];
+    private int listSize = 0;
+
+    final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndexes = new HashMap<>();
+
+    // The top-level statements, in order.
+    private int[] statements = new int[64];
+    private int statementCount = 0;
+
+    private final Flattener flattener = new Flattener();
+
+    // The names the symbol ids of name nodes refer to.
+    private final Symbols symbols;
+
+    FlatAst(Symbols symbols) {
+        this.symbols = symbols;
+    }
+
+    // Adds a resolved top-level statement.
+    void add(Stmt statement) {
+        int node = statement.accept(flattener);
+        if (statementCount == statements.length) {
+            statements = Arrays.copyOf(statements, statementCount * 2);
+        }
+        statements[statementCount++] = node;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int statementCount() {
+        return statementCount;
+    }
+
+    int statement(int index) {
+        return statements[index];
+    }
+
+    // The token an operator or name node was parsed from.
+    Token token(int node) {
+        switch (kinds[node]) {
+            case VARIABLE:
+            case ASSIGN:
+            case VAR:
+                return new Token(TokenType.IDENTIFIER, symbols.name(data[node]),
+                    null, lines[node], data[node]);
+            default:
+                return new Token(TYPES[data[node]], "", null, lines[node], -1);
+        }
+    }
+
+    TokenType operator(int node) {
+        return TYPES[data[node]];
+    }
+
+    private int node(int kind, int datum, int line, int a, int b, int c) {
+        if (size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            data = Arrays.copyOf(data, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            this.a = Arrays.copyOf(this.a, capacity);
+            this.b = Arrays.copyOf(this.b, capacity);
+            this.c = Arrays.copyOf(this.c, capacity);
+        }
+
+        kinds[size] = kind;
+        data[size] = datum;
+        lines[size] = line;
+        this.a[size] = a;
+        this.b[size] = b;
+        this.c[size] = c;
+        return size++;
+    }
+
+    private class Flattener implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+        @Override
+        public Integer visitBlockStmt(Stmt.Block stmt) {
+            // Flatten the statements before claiming their run in
+            // lists, as nested blocks claim runs of their own.
+            int[] children = new int[stmt.statements.size()];
+            for (int i = 0; i < children.length; i++) {
+                children[i] = stmt.statements.get(i).accept(this);
+            }
+
+            if (listSize + children.length > lists.length) {
+                lists = Arrays.copyOf(lists,
+                    Math.max(lists.length * 2, listSize + children.length));
+            }
+            int first = listSize;
+            System.arraycopy(children, 0, lists, first, children.length);
+            listSize += children.length;
+
+            return node(BLOCK, 0, 0, first, children.length, stmt.size);
+        }
+
+        @Override
+        public Integer visitExpressionStmt(Stmt.Expression stmt) {
+            return node(EXPRESSION, 0, 0, stmt.expression.accept(this), -1, -1);
+        }
+
+        @Override
+        public Integer visitIfStmt(Stmt.If stmt) {
+            int condition = stmt.condition.accept(this);
+            int thenBranch = stmt.thenBranch.accept(this);
+            int elseBranch = stmt.elseBranch == null ?
+                -1 : stmt.elseBranch.accept(this);
+            return node(IF, 0, 0, condition, thenBranch, elseBranch);
+        }
+
+        @Override
+        public Integer visitPrintStmt(Stmt.Print stmt) {
+            return node(PRINT, 0, 0, stmt.expression.accept(this), -1, -1);
+        }
+
+        @Override
+        public Integer visitVarStmt(Stmt.Var stmt) {
+            int initializer = stmt.initializer == null ?
+                -1 : stmt.initializer.accept(this);
+            return node(VAR, stmt.name.symbol, stmt.name.line,
+                initializer, stmt.slot, -1);
+        }
+
+        @Override
+        public Integer visitWhileStmt(Stmt.While stmt) {
+            int condition = stmt.condition.accept(this);
+            return node(WHILE, 0, 0, condition, stmt.body.accept(this), -1);
+        }
+
+        @Override
+        public Integer visitAssignExpr(Expr.Assign expr) {
+            return node(ASSIGN, expr.name.symbol, expr.name.line,
+                expr.value.accept(this), expr.depth, expr.slot);
+        }
+
+        @Override
+        public Integer visitTernaryExpr(Expr.Ternary expr) {
+            int condition = expr.condition.accept(this);
+            int left = expr.left.accept(this);
+            int right = expr.right.accept(this);
+            return node(TERNARY, expr.operator.type.ordinal(),
+                expr.operator.line, condition, left, right);
+        }
+
+        @Override
+        public Integer visitBinaryExpr(Expr.Binary expr) {
+            int left = expr.left.accept(this);
+            int right = expr.right.accept(this);
+            return node(BINARY, expr.operator.type.ordinal(),
+                expr.operator.line, left, right, -1);
+        }
+
+        @Override
+        public Integer visitGroupingExpr(Expr.Grouping expr) {
+            return expr.expression.accept(this);
+        }
+
+        @Override
+        public Integer visitLiteralExpr(Expr.Literal expr) {
+            Integer constant = constantIndexes.get(expr.value);
+            if (constant == null) {
+                constant = constants.size();
+                constants.add(expr.value);
+                constantIndexes.put(expr.value, constant);
+            }
+            return node(LITERAL, constant, 0, -1, -1, -1);
+        }
+
+        @Override
+        public Integer visitLogicalExpr(Expr.Logical expr) {
+            int left = expr.left.accept(this);
+            int right = expr.right.accept(this);
+            return node(LOGICAL, expr.operator.type.ordinal(),
+                expr.operator.line, left, right, -1);
+        }
+
+        @Override
+        public Integer visitUnaryExpr(Expr.Unary expr) {
+            return node(UNARY, expr.operator.type.ordinal(),
+                expr.operator.line, expr.right.accept(this), -1, -1);
+        }
+
+        @Override
+        public Integer visitVariableExpr(Expr.Variable expr) {
+            return node(VARIABLE, expr.name.symbol, expr.name.line,
+                expr.depth, expr.slot, -1);
+        }
+    }
+}
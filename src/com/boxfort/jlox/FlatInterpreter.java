@@ -0,0 +1,168 @@
+package com.boxfort.jlox;
+
+import static com.boxfort.jlox.FlatAst.*;
+import static com.boxfort.jlox.Values.*;
+
+// Runs a FlatAst by walking its node indexes. Behaves exactly as the
+// tree-walking Interpreter does, sharing its operator semantics and
+// error messages, but without its node specialization, unboxing or
+// loop compilation.
+class FlatInterpreter {
+    final Environment globals = new Environment();
+    // Counts lookups and blocks when set, for --metrics.
+    Metrics metrics = null;
+    private Environment environment = globals;
+    private final OutputSink output;
+    private final ErrorReporter reporter;
+    private FlatAst ast;
+
+    FlatInterpreter(OutputSink output, ErrorReporter reporter) {
+        this.output = output;
+        this.reporter = reporter;
+    }
+
+    void interpret(FlatAst ast) {
+        this.ast = ast;
+        try {
+            for (int i = 0; i < ast.statementCount(); i++) {
+                execute(ast.statement(i));
+            }
+        } catch (RuntimeError error) {
+            reporter.runtimeError(error);
+        }
+    }
+
+    private void execute(int node) {
+        switch (ast.kinds[node]) {
+            case EXPRESSION:
+                evaluate(ast.a[node]);
+                break;
+            case PRINT:
+                output.printValue(evaluate(ast.a[node]));
+                break;
+            case VAR: {
+                Object value = ast.a[node] == -1 ? null : evaluate(ast.a[node]);
+                if (ast.b[node] == -1) {
+                    globals.defineGlobal(ast.data[node], value);
+                } else {
+                    environment.define(ast.b[node], value);
+                }
+                break;
+            }
+            case BLOCK:
+                executeBlock(node);
+                break;
+            case IF:
+                if (isTruthy(evaluate(ast.a[node]))) {
+                    execute(ast.b[node]);
+                } else if (ast.c[node] != -1) {
+                    execute(ast.c[node]);
+                }
+                break;
+            case WHILE:
+                while (isTruthy(evaluate(ast.a[node]))) {
+                    execute(ast.b[node]);
+                }
+                break;
+        }
+    }
+
+    private void executeBlock(int node) {
+        int first = ast.a[node];
+        int count = ast.b[node];
+        int size = ast.c[node];
+        if (metrics != null) metrics.blocks++;
+
+        // Blocks without declarations share the enclosing environment.
+        Environment previous = environment;
+        if (size > 0) environment = new Environment(environment, size);
+        try {
+            for (int i = first; i < first + count; i++) {
+                execute(ast.lists[i]);
+            }
+        } finally {
+            environment = previous;
+        }
+    }
+
+    private Object evaluate(int node) {
+        switch (ast.kinds[node]) {
+            case LITERAL:
+                return ast.constants.get(ast.data[node]);
+            case VARIABLE:
+                if (metrics != null) metrics.lookup(ast.a[node]);
+                if (ast.a[node] == -1) {
+                    return globals.getAt(0, globalSlot(node));
+                }
+                return environment.getAt(ast.a[node], ast.b[node]);
+            case ASSIGN: {
+                Object value = evaluate(ast.a[node]);
+                if (metrics != null) metrics.lookup(ast.b[node]);
+                if (ast.b[node] == -1) {
+                    globals.assignAt(0, globalSlot(node), value);
+                } else {
+                    environment.assignAt(ast.b[node], ast.c[node], value);
+                }
+                return value;
+            }
+            case UNARY:
+                return unary(node, evaluate(ast.a[node]));
+            case BINARY:
+                return binary(node, evaluate(ast.a[node]), evaluate(ast.b[node]));
+            case LOGICAL: {
+                Object left = evaluate(ast.a[node]);
+                if (ast.operator(node) == TokenType.OR) {
+                    if (isTruthy(left)) return left;
+                } else {
+                    if (!isTruthy(left)) return left;
+                }
+                return evaluate(ast.b[node]);
+            }
+            case TERNARY: {
+                Object condition = evaluate(ast.a[node]);
+                Object left = evaluate(ast.b[node]);
+                Object right = evaluate(ast.c[node]);
+                return Interpreter.ternary(ast.token(node), condition, left, right);
+            }
+        }
+
+        throw new IllegalStateException("Not an expression: " + node);
+    }
+
+    private int globalSlot(int node) {
+        int slot = globals.globalSlot(ast.data[node]);
+        if (slot != -1) return slot;
+
+        Token name = ast.token(node);
+        throw new RuntimeError(name,
+            "Undefined variable '" + name.lexeme + "'.");
+    }
+
+    // Numbers are handled here, and anything else by the Interpreter
+    // with a recreated operator token.
+    private Object binary(int node, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            double a = (double)left;
+            double b = (double)right;
+            switch (ast.operator(node)) {
+                case PLUS: return a + b;
+                case MINUS: return a - b;
+                case STAR: return a * b;
+                case SLASH: if (b != 0) return a / b; break;
+                case GREATER: return a > b;
+                case GREATER_EQUAL: return a >= b;
+                case LESS: return a < b;
+                case LESS_EQUAL: return a <= b;
+            }
+        }
+
+        return Interpreter.binary(ast.token(node), left, right);
+    }
+
+    private Object unary(int node, Object right) {
+        if (ast.operator(node) == TokenType.BANG) return !isTruthy(right);
+        if (right instanceof Double) return -(double)right;
+
+        return Interpreter.unary(ast.token(node), right);
+    }
+}
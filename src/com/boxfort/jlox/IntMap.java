@@ -0,0 +1,89 @@
+package com.boxfort.jlox;
+
+import java.util.Arrays;
+
+// A map from non-negative ints to ints, stored in open-addressed
+// primitive arrays so lookups neither box nor hash objects.
+class IntMap {
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private int[] values;
+    private int size = 0;
+
+    interface EntryVisitor {
+        void visit(int key, int value);
+    }
+
+    IntMap() {
+        this(16);
+    }
+
+    // Capacity must be a power of two.
+    IntMap(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    // Returns the value for key, or -1 if there is none.
+    int get(int key) {
+        int mask = keys.length - 1;
+        for (int bucket = bucket(key, mask); ; bucket = (bucket + 1) & mask) {
+            int found = keys[bucket];
+            if (found == key) return values[bucket];
+            if (found == EMPTY) return -1;
+        }
+    }
+
+    void put(int key, int value) {
+        int mask = keys.length - 1;
+        int bucket = bucket(key, mask);
+        while (keys[bucket] != EMPTY && keys[bucket] != key) {
+            bucket = (bucket + 1) & mask;
+        }
+
+        if (keys[bucket] == EMPTY) {
+            // Keep the table at most half full.
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                put(key, value);
+                return;
+            }
+            size++;
+        }
+
+        keys[bucket] = key;
+        values[bucket] = value;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Visits every entry, in no particular order.
+    void forEach(EntryVisitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) visitor.visit(keys[i], values[i]);
+        }
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    // Symbol ids are sequential, so scatter them across the table.
+    private static int bucket(int key, int mask) {
+        int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
@@ -1,9 +1,40 @@
 package com.boxfort.jlox;
 
+import java.time.Duration;
 import java.util.List;
 
+import static com.boxfort.jlox.Values.*;
+
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    private Environment environment = new Environment();
+    // Loop iterations between looks at the clock when there's a timeout.
+    private static final int DEADLINE_INTERVAL = 1024;
+
+    final Environment globals = new Environment();
+    private Environment environment = globals;
+    private final LoopJit jit;
+    private final OutputSink output;
+    private final ErrorReporter reporter;
+    // Counts lookups and blocks when set, for --metrics.
+    Metrics metrics = null;
+
+    // The System.nanoTime() a run with a timeout has to finish by.
+    private boolean hasDeadline = false;
+    private long deadline;
+    private int untilDeadlineCheck = DEADLINE_INTERVAL;
+
+    // Thrown once a run with a timeout goes past its deadline. Not a
+    // RuntimeError, as there's no one token to blame.
+    static final class Timeout extends RuntimeException {
+        Timeout() {
+            super(null, null, false, false);
+        }
+    }
+
+    Interpreter(boolean enableJit, OutputSink output, ErrorReporter reporter) {
+        this.jit = new LoopJit(enableJit);
+        this.output = output;
+        this.reporter = reporter;
+    }
 
     void interpret(List<Stmt> statements) {
         try {
@@ -11,28 +42,41 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 execute(statement);
             }
         } catch (RuntimeError error) {
-            Jlox.runtimeError(error);
+            reporter.runtimeError(error);
         }
     }
 
-    private String stringify(Object object) {
-        if (object == null) return "nil";
+    // Stops interpret() with a Timeout once it's run for longer than
+    // timeout. Only loops can keep a Lox program running, so it's
+    // checked on their iterations.
+    void setTimeout(Duration timeout) {
+        hasDeadline = true;
+        deadline = System.nanoTime() + timeout.toNanos();
+    }
 
-        // Hack. work around java adding ".0" to integer-valued doubles.
-        if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
-        }
+    // Called on every loop iteration, including those of compiled loops.
+    void checkDeadline() {
+        if (--untilDeadlineCheck > 0) return;
+        untilDeadlineCheck = DEADLINE_INTERVAL;
 
-        return object.toString();
+        if (hasDeadline && System.nanoTime() - deadline > 0) {
+            throw new Timeout();
+        }
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        if (metrics != null) metrics.blocks++;
+
+        // Blocks without declarations share the enclosing environment.
+        if (stmt.size == 0) {
+            for (Stmt statement : stmt.statements) {
+                execute(statement);
+            }
+            return null;
+        }
+
+        executeBlock(stmt.statements, new Environment(environment, stmt.size));
         return null;
     }
 
@@ -51,13 +95,21 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
+        // The value of an assignment statement is discarded, so a
+        // number can be stored without ever being boxed.
+        if (stmt.expression instanceof Expr.Assign &&
+            isNumeric(((Expr.Assign)stmt.expression).value)) {
+            assignDouble((Expr.Assign)stmt.expression);
+            return null;
+        }
+
         evaluate(stmt.expression);
         return null;
     }
 
     @Override
     public Void visitIfStmt(Stmt.If stmt) {
-        if (isTruthy(evaluate(stmt.condition))) {
+        if (evaluateCondition(stmt.condition)) {
             execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
             execute(stmt.elseBranch);
@@ -68,26 +120,51 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
-        Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        print(evaluate(stmt.expression));
         return null;
     }
 
+    void print(Object value) {
+        output.printValue(value);
+    }
+
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.slot != -1 && stmt.initializer != null &&
+            isNumeric(stmt.initializer)) {
+            try {
+                environment.defineDouble(stmt.slot,
+                    evaluateDouble(stmt.initializer));
+            } catch (UnexpectedResult e) {
+                environment.define(stmt.slot, e.result);
+            }
+            return null;
+        }
+
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
+        if (stmt.slot == -1) {
+            globals.define(stmt.name, value);
+        } else {
+            environment.define(stmt.slot, value);
+        }
         return null;
     }
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
-        while(isTruthy(evaluate(stmt.condition))) {
+        LoopJit.Profile profile = jit.profile(stmt);
+        if (profile.enter(this, environment)) return null;
+
+        while(evaluateCondition(stmt.condition)) {
             execute(stmt.body);
+            checkDeadline();
+
+            // Once the loop gets hot, carry on in compiled code.
+            if (profile.backEdge(stmt, this, environment)) return null;
         }
         return null;
     }
@@ -95,8 +172,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
+        if (metrics != null) metrics.lookup(expr.depth);
 
-        environment.assign(expr.name, value);
+        if (expr.depth == -1) {
+            globals.assign(expr.name, value);
+        } else {
+            environment.assignAt(expr.depth, expr.slot, value);
+        }
         return value;
     }
 
@@ -106,9 +188,15 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
+        return ternary(expr.operator, condition, left, right);
+    }
+
+    static Object ternary(
+        Token operator, Object condition, Object left, Object right)
+    {
         if (!(condition instanceof Boolean)) {
             throw new RuntimeError(
-                expr.operator,
+                operator,
                "Ternary condition must be a boolean value.");
         }
 
@@ -124,45 +212,49 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
-        switch (expr.operator.type) {
+        return expr.node.execute(expr, left, right);
+    }
+
+    static Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case BANG_EQUAL:
                 return !isEqual(left, right);
             case EQUAL_EQUAL:
                 return isEqual(left, right);
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left > (double)right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left >= (double)right;
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left < (double)right;
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left <= (double)right;
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left - (double)right;
             case PLUS:
                 if (left instanceof Double && right instanceof Double) {
                     return (double)left + (double)right;
                 }
 
-                if (left instanceof String && right instanceof String) {
-                    return (String)left + (String)right;
+                if (isString(left) && isString(right)) {
+                    return concat(left, right);
                 }
 
-                throw new RuntimeError(expr.operator,
+                throw new RuntimeError(operator,
                     "Operands must be two numbers or two strings.");
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 if ((double)right == 0) {
-                    throw new RuntimeError(expr.operator, "Cannot divide by zero.");
+                    throw new RuntimeError(operator, "Cannot divide by zero.");
                 }
                 return (double)left / (double)right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left * (double)right;
             case COMMA:
                 return right;
@@ -199,9 +291,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitUnaryExpr(Expr.Unary expr) {
         Object right = evaluate(expr.right);
 
-        switch(expr.operator.type) {
+        return unary(expr.operator, right);
+    }
+
+    static Object unary(Token operator, Object right) {
+        switch(operator.type) {
             case MINUS:
-                checkNumberOperand(expr.operator, right);
+                checkNumberOperand(operator, right);
                 return -(double)right;
             case BANG:
                 return !isTruthy(right);
@@ -213,39 +309,215 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return environment.get(expr.name);
+        if (metrics != null) metrics.lookup(expr.depth);
+        if (expr.depth == -1) {
+            return globals.get(expr.name);
+        }
+
+        return environment.getAt(expr.depth, expr.slot);
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof  Double) return;
 
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    private static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private boolean isEqual(Object left, Object right) {
-        // nil is only equal to nil.
-        if (left == null && right == null) return true;
-        if (left == null) return false;
+    private Object evaluate(Expr expr) {
+        return expr.accept(this);
+    }
 
-        return left.equals(right);
+    // Whether an expression is expected to produce a number, making it
+    // worth evaluating through evaluateDouble().
+    private static boolean isNumeric(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            return binary.node.isNumeric() && isArithmetic(binary.operator);
+        }
+        if (expr instanceof Expr.Literal) {
+            return ((Expr.Literal)expr).value instanceof Double;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return isNumeric(((Expr.Grouping)expr).expression);
+        }
+        if (expr instanceof Expr.Unary) {
+            return ((Expr.Unary)expr).operator.type == TokenType.MINUS;
+        }
+
+        return false;
     }
 
-    private boolean isTruthy(Object obj) {
-        if(obj == null) return true;
-        if(obj instanceof Boolean) return (boolean)obj;
-        return true;
+    private static boolean isArithmetic(Token operator) {
+        switch (operator.type) {
+            case PLUS:
+            case MINUS:
+            case STAR:
+            case SLASH:
+                return true;
+            default:
+                return false;
+        }
     }
 
-    private Object evaluate(Expr expr) {
-        return expr.accept(this);
+    private static boolean isComparison(Token operator) {
+        switch (operator.type) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Evaluates an expression expected to produce a number without
+    // boxing intermediate results. If a value turns out not to be a
+    // number the rest is evaluated generically and an UnexpectedResult
+    // carrying the boxed value is thrown instead.
+    private double evaluateDouble(Expr expr) throws UnexpectedResult {
+        if (expr instanceof Expr.Binary) {
+            return binaryDouble((Expr.Binary)expr);
+        }
+
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable)expr;
+            if (metrics != null) metrics.lookup(variable.depth);
+            if (variable.depth == -1) {
+                return globals.getDouble(variable.name);
+            }
+            return environment.getDoubleAt(variable.depth, variable.slot);
+        }
+
+        if (expr instanceof Expr.Grouping) {
+            return evaluateDouble(((Expr.Grouping)expr).expression);
+        }
+
+        if (expr instanceof Expr.Unary &&
+            ((Expr.Unary)expr).operator.type == TokenType.MINUS) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            try {
+                return -evaluateDouble(unary.right);
+            } catch (UnexpectedResult e) {
+                return expectDouble(unary(unary.operator, e.result));
+            }
+        }
+
+        return expectDouble(evaluate(expr));
+    }
+
+    private double binaryDouble(Expr.Binary expr) throws UnexpectedResult {
+        if (!expr.node.isNumeric() || !isArithmetic(expr.operator)) {
+            return expectDouble(evaluate(expr));
+        }
+
+        double left;
+        double right;
+        try {
+            left = evaluateDouble(expr.left);
+        } catch (UnexpectedResult e) {
+            Object value = evaluate(expr.right);
+            return expectDouble(expr.node.execute(expr, e.result, value));
+        }
+        try {
+            right = evaluateDouble(expr.right);
+        } catch (UnexpectedResult e) {
+            return expectDouble(expr.node.execute(expr, left, e.result));
+        }
+
+        switch (expr.operator.type) {
+            case PLUS: return left + right;
+            case MINUS: return left - right;
+            case STAR: return left * right;
+            default:
+                // Let the node report division by zero.
+                if (right == 0) {
+                    return expectDouble(expr.node.execute(expr, left, right));
+                }
+                return left / right;
+        }
+    }
+
+    private static double expectDouble(Object value) throws UnexpectedResult {
+        if (value instanceof Double) return (double)value;
+        throw new UnexpectedResult(value);
+    }
+
+    // Evaluates an expression for its truthiness, comparing numbers
+    // without boxing them.
+    private boolean evaluateCondition(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (binary.node.isNumeric() && isComparison(binary.operator)) {
+                return comparison(binary);
+            }
+        }
+
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            if (logical.operator.type == TokenType.OR) {
+                return evaluateCondition(logical.left) ||
+                    evaluateCondition(logical.right);
+            }
+            return evaluateCondition(logical.left) &&
+                evaluateCondition(logical.right);
+        }
+
+        if (expr instanceof Expr.Grouping) {
+            return evaluateCondition(((Expr.Grouping)expr).expression);
+        }
+
+        return isTruthy(evaluate(expr));
+    }
+
+    private boolean comparison(Expr.Binary expr) {
+        double left;
+        double right;
+        try {
+            left = evaluateDouble(expr.left);
+        } catch (UnexpectedResult e) {
+            Object value = evaluate(expr.right);
+            return isTruthy(expr.node.execute(expr, e.result, value));
+        }
+        try {
+            right = evaluateDouble(expr.right);
+        } catch (UnexpectedResult e) {
+            return isTruthy(expr.node.execute(expr, left, e.result));
+        }
+
+        switch (expr.operator.type) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            default: return left <= right;
+        }
+    }
+
+    private void assignDouble(Expr.Assign expr) {
+        try {
+            double value = evaluateDouble(expr.value);
+            if (metrics != null) metrics.lookup(expr.depth);
+            if (expr.depth == -1) {
+                globals.assignDouble(expr.name, value);
+            } else {
+                environment.assignDoubleAt(expr.depth, expr.slot, value);
+            }
+        } catch (UnexpectedResult e) {
+            if (metrics != null) metrics.lookup(expr.depth);
+            if (expr.depth == -1) {
+                globals.assign(expr.name, e.result);
+            } else {
+                environment.assignAt(expr.depth, expr.slot, e.result);
+            }
+        }
     }
 
-    private void execute(Stmt stmt) {
+    void execute(Stmt stmt) {
         stmt.accept(this);
     }
 }
@@ -1,38 +1,248 @@
 package com.boxfort.jlox;
 
-import jdk.internal.util.xml.impl.Input;
+import com.boxfort.jlox.vm.Chunk;
+import com.boxfort.jlox.vm.VM;
+import com.boxfort.jlox.vm.VmError;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class Jlox {
-    private static final Interpreter interpreter = new Interpreter();
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    // Where print statements write to, shared by every engine.
+    private static OutputSink output = ChannelSink.stdout();
+    private static Interpreter interpreter;
+    private static FlatInterpreter flatInterpreter;
+    private static VM vm;
+    private static final Metrics metrics = new Metrics();
+    private static ErrorReporter reporter;
+    // Names of globals stay defined from one REPL line to the next, so
+    // their ids have to mean the same thing in each.
+    private static final Symbols symbols = new Symbols();
+
+    // Run programs on the bytecode VM rather than the tree-walker.
+    private static boolean useVm = false;
+    // Compile hot loops to JVM bytecode in the tree-walker.
+    private static boolean useJit = true;
+    // Report how often AST nodes specialized themselves.
+    private static boolean printRewriteStats = false;
+    // Print the program before and after optimization.
+    private static boolean dumpAst = false;
+    // Run each top-level declaration as soon as it's parsed.
+    private static boolean stream = false;
+    // Reuse the parsed syntax tree of scripts that haven't changed.
+    private static boolean useCache = true;
+    // Run programs from a FlatAst rather than the tree of nodes.
+    private static boolean useFlat = false;
+    // Sample the tree-walker and write the stacks seen to this file.
+    private static Path profileOutput = null;
+    private static Profiler profiler = null;
+    // Print the metrics of the script when it's done.
+    private static boolean printMetrics = false;
+    // Run every script in this directory or manifest, in parallel.
+    private static Path batch = null;
+    // Save the globals left by the script to this file.
+    private static Path snapshotOutput = null;
+    // Start with the globals saved in this file.
+    private static Path snapshotInput = null;
+    // Serve scripts sent by JloxClient over this Unix domain socket.
+    private static Path daemonSocket = null;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        int argc = 0;
+        while (argc < args.length && args[argc].startsWith("--")) {
+            switch (args[argc++]) {
+                case "--vm": useVm = true; break;
+                case "--no-jit": useJit = false; break;
+                case "--rewrite-stats": printRewriteStats = true; break;
+                case "--dump-ast": dumpAst = true; break;
+                case "--stream": stream = true; break;
+                case "--no-cache": useCache = false; break;
+                case "--flat": useFlat = true; break;
+                case "--metrics": printMetrics = true; break;
+                case "--output":
+                    if (argc == args.length) usage();
+                    output = ChannelSink.file(Paths.get(args[argc++]));
+                    break;
+                case "--profile":
+                    if (argc == args.length) usage();
+                    profileOutput = Paths.get(args[argc++]);
+                    break;
+                case "--batch":
+                    if (argc == args.length) usage();
+                    batch = Paths.get(args[argc++]);
+                    break;
+                case "--snapshot":
+                    if (argc == args.length) usage();
+                    snapshotOutput = Paths.get(args[argc++]);
+                    break;
+                case "--restore":
+                    if (argc == args.length) usage();
+                    snapshotInput = Paths.get(args[argc++]);
+                    break;
+                case "--daemon":
+                    if (argc == args.length) usage();
+                    daemonSocket = Paths.get(args[argc++]);
+                    break;
+                default: usage();
+            }
+        }
+
+        if (daemonSocket != null) {
+            // Like batches, scripts sent to the daemon each run on a
+            // tree-walker of their own.
+            if (useVm || useFlat || stream || dumpAst || printMetrics ||
+                    profileOutput != null || snapshotOutput != null ||
+                    snapshotInput != null || batch != null ||
+                    argc != args.length) {
+                usage();
+            }
+            try {
+                new Daemon(daemonSocket, new JloxEngine(useJit)).serve();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                // EX_UNAVAILABLE, as sysexits.h has it.
+                System.exit(69);
+            }
+        }
+
+        if (batch != null) {
+            // Batches run on the tree-walker, with nothing but the
+            // summary printed besides what the scripts print.
+            if (useVm || useFlat || stream || dumpAst || printMetrics ||
+                    profileOutput != null || snapshotOutput != null ||
+                    snapshotInput != null || argc != args.length) {
+                usage();
+            }
+            runBatch(batch);
+        }
+
+        reporter = new ErrorReporter(output, System.err::println);
+        if (printMetrics) reporter.metrics = metrics;
+
+        if (profileOutput != null) {
+            // Only scripts run on the tree-walker can be profiled.
+            if (useVm || useFlat || args.length - argc != 1) usage();
+
+            ProfilingInterpreter profiling =
+                new ProfilingInterpreter(useJit, output, reporter);
+            profiler = new Profiler(profiling);
+            interpreter = profiling;
         } else {
-            runPrompt();
+            interpreter = new Interpreter(useJit, output, reporter);
+        }
+        flatInterpreter = new FlatInterpreter(output, reporter);
+        vm = new VM(output);
+        if (printMetrics) {
+            interpreter.metrics = metrics;
+            flatInterpreter.metrics = metrics;
         }
+
+        // The VM keeps its globals its own way. Snapshots are taken
+        // when a script finishes, so need one.
+        if ((snapshotInput != null || snapshotOutput != null) && useVm) usage();
+        if (snapshotOutput != null && args.length - argc != 1) usage();
+        if (snapshotInput != null) restore(snapshotInput);
+
+        try {
+            if (args.length - argc > 1) {
+                usage();
+            } else if (args.length - argc == 1) {
+                runFile(args[argc]);
+            } else {
+                runPrompt();
+            }
+        } finally {
+            output.flush();
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage: jlox [--vm] [--no-jit] [--rewrite-stats] " +
+            "[--dump-ast] [--stream] [--no-cache] [--flat] [--output file] " +
+            "[--profile file] [--metrics] [--batch dir|manifest] [--snapshot file] " +
+            "[--restore file] [--daemon socket] [script]");
+        System.exit(64);
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        if (profiler != null) profiler.start();
+
+        if (stream) {
+            runStream(path);
+        } else {
+            byte[] bytes = Files.readAllBytes(Paths.get(path));
+            if (useCache && !useFlat) {
+                runCached(bytes);
+            } else {
+                run(new String(bytes, Charset.defaultCharset()));
+            }
+        }
+        output.flush();
+        if (printRewriteStats) System.err.println(BinaryNode.stats());
+        if (profiler != null) profile(path);
+        if (printMetrics) metrics.print(System.err);
+        if (snapshotOutput != null && !reporter.hadError() &&
+                !reporter.hadRuntimeError()) {
+            Snapshot.write(useFlat ? flatInterpreter.globals : interpreter.globals,
+                symbols, snapshotOutput);
+        }
 
         // Indicate an error in the exit code.
-        if (hadError) System.exit(65);
-        if (hadRuntimeError) System.exit(70);
+        if (reporter.hadError()) System.exit(65);
+        if (reporter.hadRuntimeError()) System.exit(70);
+    }
+
+    private static void runBatch(Path path) throws IOException {
+        int exitCode;
+        try (JloxEngine engine = new JloxEngine(useJit)) {
+            List<Path> scripts = BatchRunner.scripts(path);
+            exitCode = new BatchRunner(engine, new ForkJoinPool())
+                .run(scripts, output, System.err, System.err);
+        } finally {
+            output.flush();
+        }
+
+        if (printRewriteStats) System.err.println(BinaryNode.stats());
+        System.exit(exitCode);
+    }
+
+    // Exits with EX_NOINPUT, as sysexits.h has it, if the snapshot
+    // can't be read.
+    private static void restore(Path path) {
+        try {
+            Snapshot.restore(path,
+                useFlat ? flatInterpreter.globals : interpreter.globals,
+                symbols);
+        } catch (NoSuchFileException e) {
+            System.err.println("Could not restore " + path + ": No such file.");
+            System.exit(66);
+        } catch (IOException e) {
+            System.err.println("Could not restore " + path + ": " + e.getMessage());
+            System.exit(66);
+        }
+    }
+
+    private static void profile(String path) throws IOException {
+        profiler.stop();
+        profiler.writeCollapsed(profileOutput);
+
+        List<String> source;
+        try {
+            source = Files.readAllLines(Paths.get(path), Charset.defaultCharset());
+        } catch (IOException e) {
+            source = null;
+        }
+        profiler.report(System.err, source);
     }
 
     private static void runPrompt() throws IOException {
@@ -41,49 +251,153 @@ public class Jlox {
 
         // Loop Forever
         for (;;) {
+            output.flush();
             System.out.print("> ");
             run(reader.readLine());
 
             // Reset error flag when running interactively as
             // we don't want to kill the users session.
-            hadError = false;
+            reporter.clearError();
         }
     }
 
     private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
+        if (useFlat) {
+            runFlat(source);
+            return;
+        }
+
+        List<Stmt> statements = parse(source);
 
         // If there was a syntax error return.
-        if (hadError) return;
+        if (reporter.hadError()) return;
 
-        interpreter.interpret(statements);
+        execute(statements);
     }
 
-    static void error(int line, String message) {
-        report(line, "", message);
+    // Runs the script from the AST cache if it's been parsed before, or
+    // parses it and caches the result.
+    private static void runCached(byte[] source) {
+        AstCache cache = new AstCache(AstCache.defaultDirectory());
+        String key = cache.key(source);
+
+        List<Stmt> statements = cache.load(key, symbols);
+        if (statements == null) {
+            statements = parse(new String(source, Charset.defaultCharset()));
+
+            // If there was a syntax error return.
+            if (reporter.hadError()) return;
+
+            cache.store(key, statements);
+        }
+
+        execute(statements);
     }
 
-    private static void report(int line, String where, String message) {
-        System.err.println(
-                "[line " + line + "] Error" + where + ": " + message
-        );
-        hadError = true;
+    // Flattens each top-level declaration as soon as it's parsed,
+    // optimized and resolved, so the tree of nodes for the whole program
+    // never exists at once.
+    private static void runFlat(String source) {
+        TokenBuffer tokens = scan(source);
+        Parser parser = new Parser(tokens.cursor(), reporter);
+
+        FlatAst ast = new FlatAst(symbols);
+        while (parser.hasNext()) {
+            Stmt statement = parser.parseNext();
+            if (reporter.hadError()) continue;
+
+            List<Stmt> statements = new Optimizer().optimize(
+                Collections.singletonList(statement));
+            new Resolver().resolve(statements);
+            for (Stmt optimized : statements) {
+                ast.add(optimized);
+            }
+        }
+
+        // Stop if there was a syntax error.
+        if (reporter.hadError()) return;
+
+        Metrics.Timing interpret = metrics.begin(Metrics.Phase.INTERPRET, "flat");
+        flatInterpreter.interpret(ast);
+        metrics.end(interpret, 0);
     }
 
-    static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
+    private static List<Stmt> parse(String source) {
+        TokenBuffer tokens = scan(source);
+
+        Metrics.Timing timing = metrics.begin(Metrics.Phase.PARSE);
+        List<Stmt> statements = new Parser(tokens.cursor(), reporter).parse();
+        metrics.end(timing, statements.size());
+        return statements;
+    }
+
+    private static TokenBuffer scan(String source) {
+        Metrics.Timing timing = metrics.begin(Metrics.Phase.SCAN);
+        TokenBuffer tokens = new ParallelScanner(symbols, reporter).scanTokens(source);
+        metrics.end(timing, tokens.size());
+        return tokens;
+    }
+
+    // Scans, parses and runs the script one top-level declaration at a
+    // time, so neither its source nor its syntax tree is ever held in
+    // memory whole. Unlike run(), declarations before a syntax error
+    // have already run by the time it's found. Nothing runs after it,
+    // but parsing carries on to report any further errors.
+    private static void runStream(String path) throws IOException {
+        try (Reader reader = new InputStreamReader(
+                Files.newInputStream(Paths.get(path)),
+                Charset.defaultCharset())) {
+            Parser parser = new Parser(
+                new TokenStream(new Scanner(reader, symbols, reporter).iterator()),
+                reporter);
+            while (parser.hasNext()) {
+                Stmt statement = parser.parseNext();
+                if (reporter.hadRuntimeError()) return;
+                if (reporter.hadError()) continue;
+
+                execute(Collections.singletonList(statement));
+            }
+        }
+    }
+
+    private static void execute(List<Stmt> statements) {
+        if (dumpAst) dump("Parsed", statements);
+        Metrics.Timing optimize = metrics.begin(Metrics.Phase.OPTIMIZE);
+        statements = new Optimizer().optimize(statements);
+        metrics.end(optimize, statements.size());
+        if (dumpAst) dump("Optimized", statements);
+
+        Metrics.Timing resolve = metrics.begin(Metrics.Phase.RESOLVE);
+        Resolver resolver = new Resolver();
+        resolver.resolve(statements);
+        metrics.end(resolve, statements.size());
+
+        Metrics.Timing interpret = metrics.begin(Metrics.Phase.INTERPRET,
+            useVm ? "vm" : "tree-walker");
+        if (useVm) {
+            runVm(statements);
         } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+            interpreter.interpret(statements);
         }
+        metrics.end(interpret, statements.size());
     }
 
-    public static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() +
-            "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
+    private static void runVm(List<Stmt> statements) {
+        Chunk chunk = new BytecodeCompiler(reporter).compile(statements);
+        if (reporter.hadError()) return;
+
+        try {
+            vm.interpret(chunk);
+        } catch (VmError error) {
+            reporter.runtimeError(error.getMessage(), error.line);
+        }
+    }
+
+    private static void dump(String title, List<Stmt> statements) {
+        AstPrinter printer = new AstPrinter();
+        System.err.println(title + ":");
+        for (Stmt statement : statements) {
+            System.err.println("  " + printer.print(statement));
+        }
     }
 }
@@ -0,0 +1,91 @@
+package com.boxfort.jlox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// Runs a script on a daemon started with jlox --daemon, printing what
+// it prints and exiting with its exit code, as jlox itself would. It
+// loads only a handful of classes, so starts much faster than jlox.
+// See Daemon for the protocol.
+public class JloxClient {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: jloxc socket script|-");
+            System.exit(64);
+        }
+
+        Path socket = Paths.get(args[0]);
+        byte kind;
+        String request;
+        if (args[1].equals("-")) {
+            // Read the script from standard input.
+            kind = Daemon.SOURCE;
+            request = new String(System.in.readAllBytes(), Charset.defaultCharset());
+        } else {
+            // The daemon may have started somewhere else.
+            kind = Daemon.PATH;
+            request = Paths.get(args[1]).toAbsolutePath().toString();
+        }
+
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            System.err.println("Could not connect to a daemon on " + socket + ".");
+            // EX_UNAVAILABLE, as sysexits.h has it.
+            System.exit(69);
+            return;
+        }
+
+        try (channel) {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(Daemon.MAGIC);
+            out.writeByte(kind);
+            Daemon.string(out, request);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel)));
+            System.exit(receive(in));
+        } catch (EOFException e) {
+            System.err.println("The daemon closed the connection.");
+            // EX_IOERR, as sysexits.h has it.
+            System.exit(74);
+        }
+    }
+
+    // Prints frames until the exit code arrives, and returns it.
+    private static int receive(DataInputStream in) throws IOException {
+        PrintStream out = System.out;
+        for (;;) {
+            byte tag = in.readByte();
+            switch (tag) {
+                case Daemon.OUTPUT:
+                    out.print(Daemon.string(in));
+                    break;
+                case Daemon.ERROR:
+                    // Keep output and errors in the order they happened.
+                    out.flush();
+                    System.err.println(Daemon.string(in));
+                    break;
+                case Daemon.EXIT:
+                    out.flush();
+                    return in.readInt();
+                default:
+                    throw new IOException("Unknown frame " + tag + ".");
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.boxfort.jlox;
+
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+// Runs Lox scripts from Java. Scripts are compiled once into Programs,
+// which can then be run any number of times from any number of threads
+// at once. Every run gets its own interpreter, global environment and
+// errors, so runs can't see each other. The engine itself only holds
+// its options and the executor for submit(), created by the first
+// call, and is safe to share.
+public final class JloxEngine implements AutoCloseable {
+    private static final OutputSink DISCARD = line -> {};
+
+    private final boolean enableJit;
+    private ExecutorService executor = null;
+    private boolean closed = false;
+
+    public JloxEngine() {
+        this(true);
+    }
+
+    // Whether hot loops are compiled to JVM bytecode. Compiled loops
+    // are kept per run, so short runs of many scripts may do better
+    // without.
+    public JloxEngine(boolean enableJit) {
+        this.enableJit = enableJit;
+    }
+
+    // A scanned, parsed, optimized and resolved script, or the errors
+    // that stopped it getting that far. Nothing changes a program once
+    // it's compiled except binary expressions specializing themselves.
+    // They only ever swap one shared, stateless node for another, so
+    // runs racing to do it stay correct.
+    public static final class Program {
+        final List<Stmt> statements;
+        private final List<String> errors;
+
+        private Program(List<Stmt> statements, List<String> errors) {
+            this.statements = statements;
+            this.errors = Collections.unmodifiableList(errors);
+        }
+
+        public boolean hasErrors() {
+            return !errors.isEmpty();
+        }
+
+        // The syntax errors, formatted as jlox prints them.
+        public List<String> errors() {
+            return errors;
+        }
+    }
+
+    public static final class Result {
+        private final int exitCode;
+        private final List<String> errors;
+
+        private Result(int exitCode, List<String> errors) {
+            this.exitCode = exitCode;
+            this.errors = Collections.unmodifiableList(errors);
+        }
+
+        // 0 on success, 65 if the program didn't compile and 70 if it
+        // failed at runtime or ran out of time, as jlox exits with.
+        public int exitCode() {
+            return exitCode;
+        }
+
+        public List<String> errors() {
+            return errors;
+        }
+    }
+
+    public Program compile(String source) {
+        List<String> errors = new ArrayList<>();
+        ErrorReporter reporter = new ErrorReporter(DISCARD, errors::add);
+
+        // Each program interns its names in a table of its own, so
+        // nothing is left behind once it's no longer used.
+        Symbols symbols = new Symbols();
+        TokenBuffer tokens = new ParallelScanner(symbols, reporter).scanTokens(source);
+        List<Stmt> statements = new Parser(tokens.cursor(), reporter).parse();
+        if (!reporter.hadError()) {
+            statements = new Optimizer().optimize(statements);
+            new Resolver().resolve(statements);
+        }
+
+        return new Program(Collections.unmodifiableList(statements), errors);
+    }
+
+    // Runs the program on the calling thread, printing to output.
+    public Result run(Program program, OutputSink output) {
+        return run(program, output, null);
+    }
+
+    // As run(program, output), but stops the program with an error if
+    // it's still running after timeout, or never if timeout is null.
+    public Result run(Program program, OutputSink output, Duration timeout) {
+        if (program.hasErrors()) return new Result(65, program.errors);
+
+        List<String> errors = new ArrayList<>();
+        ErrorReporter reporter = new ErrorReporter(output, errors::add);
+        Interpreter interpreter = new Interpreter(enableJit, output, reporter);
+        if (timeout != null) interpreter.setTimeout(timeout);
+        try {
+            interpreter.interpret(program.statements);
+        } catch (Interpreter.Timeout e) {
+            output.flush();
+            errors.add("Stopped after running for " + timeout.toMillis() + " ms.");
+            return new Result(70, errors);
+        }
+        output.flush();
+
+        return new Result(reporter.hadRuntimeError() ? 70 : 0, errors);
+    }
+
+    public Result run(String source, OutputSink output) {
+        return run(compile(source), output);
+    }
+
+    // Runs the program on a thread of the engine's own.
+    public CompletableFuture<Result> submit(Program program, OutputSink output) {
+        return CompletableFuture.supplyAsync(() -> run(program, output), executor());
+    }
+
+    private synchronized ExecutorService executor() {
+        if (closed) throw new RejectedExecutionException("The engine is closed.");
+        if (executor == null) executor = newExecutor();
+        return executor;
+    }
+
+    // Stops accepting submissions. Those already submitted still run.
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (executor != null) executor.shutdown();
+    }
+
+    // A virtual thread for each run on JDKs that have them, so thousands
+    // can be submitted at once cheaply. Elsewhere a daemon thread per
+    // core.
+    static ExecutorService newExecutor() {
+        ExecutorService virtual = newVirtualThreadExecutor();
+        if (virtual != null) return virtual;
+
+        return Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), daemonThreads("jlox-engine"));
+    }
+
+    // For tasks that may run for a long time and mustn't wait for each
+    // other, such as the daemon's connections. Virtual threads where
+    // there are any, otherwise a new daemon thread whenever none is idle.
+    static ExecutorService newUnboundedExecutor(String name) {
+        ExecutorService virtual = newVirtualThreadExecutor();
+        if (virtual != null) return virtual;
+
+        return Executors.newCachedThreadPool(daemonThreads(name));
+    }
+
+    // Looked up reflectively as jlox builds for Java 17. Returns null
+    // where there are no virtual threads.
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)method.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            // Missing, or a preview feature that isn't enabled.
+            return null;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,478 @@
+package com.boxfort.jlox;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.boxfort.jlox.ClassAssembler.*;
+import static com.boxfort.jlox.ClassAssembler.Opcodes.*;
+
+// Compiles a resolved while loop into a hidden class implementing
+// CompiledLoop.Code. Every Lox value is an Object on the JVM stack.
+// Arithmetic and comparisons are inlined on unboxed doubles behind
+// instanceof guards, everything else calls back into the runtime.
+class LoopCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final String CLASS_NAME = "com/boxfort/jlox/Loop";
+    private static final String CODE = "com/boxfort/jlox/CompiledLoop$Code";
+    private static final String LOOP = "com/boxfort/jlox/CompiledLoop";
+    private static final String INTERPRETER = "com/boxfort/jlox/Interpreter";
+    private static final String ENVIRONMENT = "com/boxfort/jlox/Environment";
+    private static final String TOKEN = "com/boxfort/jlox/Token";
+    private static final String VALUES = "com/boxfort/jlox/Values";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String DOUBLE = "java/lang/Double";
+    private static final String BOOLEAN = "java/lang/Boolean";
+
+    private static final String RUN_DESCRIPTOR = "(L" + INTERPRETER +
+        ";L" + ENVIRONMENT + ";[L" + OBJECT + ";L" + LOOP + ";)Z";
+
+    // Arguments of the generated run() method.
+    private static final int INTERPRETER_LOCAL = 1;
+    private static final int ENVIRONMENT_LOCAL = 2;
+    private static final int CONSTANTS_LOCAL = 3;
+    private static final int LOOP_LOCAL = 4;
+
+    private final List<Object> constants = new ArrayList<>();
+
+    // The JVM locals holding the environment of each block entered
+    // within the loop, starting with the loop's own environment.
+    private final List<Integer> environments = new ArrayList<>();
+    private ClassAssembler.Method code;
+
+    CompiledLoop compile(Stmt.While loop) throws ClassTooLargeException {
+        ClassAssembler assembler = new ClassAssembler(CLASS_NAME, OBJECT, CODE);
+
+        ClassAssembler.Method init = assembler.method(ACC_PUBLIC, "<init>", "()V");
+        init.aload(0);
+        init.invoke(INVOKESPECIAL, OBJECT, "<init>", "()V");
+        init.op(RETURN, 0);
+        init.finish();
+
+        code = assembler.method(ACC_PUBLIC, "run", RUN_DESCRIPTOR);
+        environments.add(ENVIRONMENT_LOCAL);
+
+        Label top = code.newLabel();
+        Label exit = code.newLabel();
+        Label deoptimize = code.newLabel();
+
+        code.bind(top);
+        compileCondition(loop.condition, exit);
+        compile(loop.body);
+        checkDeadline();
+
+        // Only leave compiled code between iterations, when the
+        // Interpreter can pick up again by re-evaluating the condition.
+        code.aload(LOOP_LOCAL);
+        code.invoke(INVOKEVIRTUAL, LOOP, "isInvalidated", "()Z");
+        code.jump(IFNE, deoptimize);
+        code.jump(GOTO, top);
+
+        code.bind(exit);
+        code.op(ICONST_1, 1);
+        code.op(IRETURN, -1);
+
+        code.bind(deoptimize);
+        code.op(ICONST_0, 1);
+        code.op(IRETURN, -1);
+        code.finish();
+        byte[] bytes = assembler.toByteArray();
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                .defineHiddenClass(bytes, true);
+            CompiledLoop.Code compiled = (CompiledLoop.Code)lookup
+                .findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class))
+                .invoke();
+            return new CompiledLoop(compiled, constants.toArray());
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.size == 0) {
+            for (Stmt statement : stmt.statements) {
+                compile(statement);
+            }
+            return null;
+        }
+
+        int environment = code.newLocal(1);
+        code.type(NEW, ENVIRONMENT);
+        code.op(DUP, 1);
+        code.aload(currentEnvironment());
+        code.pushInt(stmt.size);
+        code.invoke(INVOKESPECIAL, ENVIRONMENT, "<init>",
+            "(L" + ENVIRONMENT + ";I)V");
+        code.astore(environment);
+
+        environments.add(environment);
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        environments.remove(environments.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        code.op(POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Label elseBranch = code.newLabel();
+        Label end = code.newLabel();
+
+        compileCondition(stmt.condition, elseBranch);
+        compile(stmt.thenBranch);
+        code.jump(GOTO, end);
+
+        code.bind(elseBranch);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        code.bind(end);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        code.aload(INTERPRETER_LOCAL);
+        compile(stmt.expression);
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "print", "(L" + OBJECT + ";)V");
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.slot == -1) {
+            loadGlobals();
+            loadConstant(stmt.name, TOKEN);
+        } else {
+            code.aload(currentEnvironment());
+            code.pushInt(stmt.slot);
+        }
+
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+
+        String name = stmt.slot == -1 ? "L" + TOKEN + ";" : "I";
+        code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "define",
+            "(" + name + "L" + OBJECT + ";)V");
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Label top = code.newLabel();
+        Label exit = code.newLabel();
+
+        code.bind(top);
+        compileCondition(stmt.condition, exit);
+        compile(stmt.body);
+        checkDeadline();
+        code.jump(GOTO, top);
+        code.bind(exit);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        if (expr.depth == -1) {
+            loadGlobals();
+            loadConstant(expr.name, TOKEN);
+            compile(expr.value);
+            code.invoke(INVOKESTATIC, LOOP, "assignGlobal",
+                "(L" + ENVIRONMENT + ";L" + TOKEN + ";L" + OBJECT + ";)L" +
+                OBJECT + ";");
+        } else {
+            int depth = loadEnvironment(expr.depth);
+            code.pushInt(depth);
+            code.pushInt(expr.slot);
+            compile(expr.value);
+            code.invoke(INVOKESTATIC, LOOP, "assignAt",
+                "(L" + ENVIRONMENT + ";IIL" + OBJECT + ";)L" + OBJECT + ";");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        compile(expr.condition);
+        compile(expr.left);
+        compile(expr.right);
+        loadConstant(expr.operator, TOKEN);
+        code.invoke(INVOKESTATIC, LOOP, "ternary",
+            "(L" + OBJECT + ";L" + OBJECT + ";L" + OBJECT + ";L" + TOKEN +
+            ";)L" + OBJECT + ";");
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+
+        if (expr.operator.type == TokenType.COMMA) {
+            code.op(POP, -1);
+            compile(expr.right);
+            return null;
+        }
+
+        compile(expr.right);
+
+        switch (expr.operator.type) {
+            case EQUAL_EQUAL:
+                invokeHelper("isEqual", 2);
+                return null;
+            case BANG_EQUAL:
+                invokeHelper("isNotEqual", 2);
+                return null;
+        }
+
+        // Don't speculate on numbers where the interpreter has already
+        // seen other operands.
+        if (expr.node != BinaryNode.UNINITIALIZED && !expr.node.isNumeric()) {
+            loadConstant(expr.operator, TOKEN);
+            code.invoke(INVOKESTATIC, LOOP, "binary",
+                "(L" + OBJECT + ";L" + OBJECT + ";L" + TOKEN + ";)L" +
+                OBJECT + ";");
+            return null;
+        }
+
+        int right = code.newLocal(1);
+        int left = code.newLocal(1);
+        code.astore(right);
+        code.astore(left);
+
+        Label slowPath = code.newLabel();
+        Label done = code.newLabel();
+
+        // Guard that both operands are numbers.
+        code.aload(left);
+        code.type(INSTANCEOF, DOUBLE);
+        code.jump(IFEQ, slowPath);
+        code.aload(right);
+        code.type(INSTANCEOF, DOUBLE);
+        code.jump(IFEQ, slowPath);
+
+        if (expr.operator.type == TokenType.SLASH) {
+            // Let the slow path report division by zero.
+            unbox(right);
+            code.op(DCONST_0, 2);
+            code.op(DCMPL, -3);
+            code.jump(IFEQ, slowPath);
+        }
+
+        unbox(left);
+        unbox(right);
+
+        switch (expr.operator.type) {
+            case PLUS: arithmetic(DADD); break;
+            case MINUS: arithmetic(DSUB); break;
+            case STAR: arithmetic(DMUL); break;
+            case SLASH: arithmetic(DDIV); break;
+            // The comparisons branch when the result is false. For NaN
+            // operands dcmpg gives 1 and dcmpl gives -1, so NaN always
+            // takes the false branch like it does in Java.
+            case GREATER: comparison(DCMPL, IFLE); break;
+            case GREATER_EQUAL: comparison(DCMPL, IFLT); break;
+            case LESS: comparison(DCMPG, IFGE); break;
+            case LESS_EQUAL: comparison(DCMPG, IFGT); break;
+        }
+        code.jump(GOTO, done);
+
+        code.bind(slowPath);
+        code.aload(LOOP_LOCAL);
+        code.aload(left);
+        code.aload(right);
+        loadConstant(expr.operator, TOKEN);
+        code.invoke(INVOKEVIRTUAL, LOOP, "slowBinary",
+            "(L" + OBJECT + ";L" + OBJECT + ";L" + TOKEN + ";)L" + OBJECT + ";");
+
+        code.bind(done);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            code.op(ACONST_NULL, 1);
+        } else {
+            loadConstant(expr.value, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        Label end = code.newLabel();
+
+        // Keep the left operand as the result if it short-circuits.
+        compile(expr.left);
+        code.op(DUP, 1);
+        isTruthy();
+        code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+
+        code.op(POP, -1);
+        compile(expr.right);
+        code.bind(end);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        if (expr.operator.type == TokenType.BANG) {
+            invokeHelper("not", 1);
+            return null;
+        }
+
+        int right = code.newLocal(1);
+        code.astore(right);
+
+        Label slowPath = code.newLabel();
+        Label done = code.newLabel();
+
+        code.aload(right);
+        code.type(INSTANCEOF, DOUBLE);
+        code.jump(IFEQ, slowPath);
+        unbox(right);
+        code.op(DNEG, 0);
+        box();
+        code.jump(GOTO, done);
+
+        code.bind(slowPath);
+        code.aload(LOOP_LOCAL);
+        code.aload(right);
+        loadConstant(expr.operator, TOKEN);
+        code.invoke(INVOKEVIRTUAL, LOOP, "slowUnary",
+            "(L" + OBJECT + ";L" + TOKEN + ";)L" + OBJECT + ";");
+
+        code.bind(done);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth == -1) {
+            loadGlobals();
+            loadConstant(expr.name, TOKEN);
+            code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "get",
+                "(L" + TOKEN + ";)L" + OBJECT + ";");
+        } else {
+            int depth = loadEnvironment(expr.depth);
+            code.pushInt(depth);
+            code.pushInt(expr.slot);
+            code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "getAt",
+                "(II)L" + OBJECT + ";");
+        }
+        return null;
+    }
+
+    // Lets a run with a timeout stop in compiled loops too.
+    private void checkDeadline() {
+        code.aload(INTERPRETER_LOCAL);
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "checkDeadline", "()V");
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    // Evaluates the condition and jumps to the label if it's falsey.
+    private void compileCondition(Expr condition, Label ifFalse) {
+        compile(condition);
+        isTruthy();
+        code.jump(IFEQ, ifFalse);
+    }
+
+    private void isTruthy() {
+        code.invoke(INVOKESTATIC, VALUES, "isTruthy", "(L" + OBJECT + ";)Z");
+    }
+
+    private void arithmetic(int opcode) {
+        code.op(opcode, -2);
+        box();
+    }
+
+    private void comparison(int compare, int ifFalse) {
+        Label isFalse = code.newLabel();
+        Label done = code.newLabel();
+
+        code.op(compare, -3);
+        code.jump(ifFalse, isFalse);
+        code.field(GETSTATIC, BOOLEAN, "TRUE", "L" + BOOLEAN + ";");
+        code.jump(GOTO, done);
+        code.bind(isFalse);
+        code.field(GETSTATIC, BOOLEAN, "FALSE", "L" + BOOLEAN + ";");
+        code.bind(done);
+    }
+
+    private void unbox(int local) {
+        code.aload(local);
+        code.type(CHECKCAST, DOUBLE);
+        code.invoke(INVOKEVIRTUAL, DOUBLE, "doubleValue", "()D");
+    }
+
+    private void box() {
+        code.invoke(INVOKESTATIC, DOUBLE, "valueOf", "(D)L" + DOUBLE + ";");
+    }
+
+    private void invokeHelper(String name, int arity) {
+        StringBuilder descriptor = new StringBuilder("(");
+        for (int i = 0; i < arity; i++) descriptor.append("L" + OBJECT + ";");
+        descriptor.append(")L" + OBJECT + ";");
+        code.invoke(INVOKESTATIC, LOOP, name, descriptor.toString());
+    }
+
+    private void loadGlobals() {
+        code.aload(INTERPRETER_LOCAL);
+        code.field(GETFIELD, INTERPRETER, "globals", "L" + ENVIRONMENT + ";");
+    }
+
+    private void loadConstant(Object value, String type) {
+        constants.add(value);
+        code.aload(CONSTANTS_LOCAL);
+        code.pushInt(constants.size() - 1);
+        code.op(AALOAD, -1);
+        if (type != null) code.type(CHECKCAST, type);
+    }
+
+    private int currentEnvironment() {
+        return environments.get(environments.size() - 1);
+    }
+
+    // Pushes the nearest environment known to the compiled code on the
+    // path to the one at the given depth, returning how many further
+    // hops remain once outside the loop.
+    private int loadEnvironment(int depth) {
+        int level = environments.size() - 1;
+        if (depth <= level) {
+            code.aload(environments.get(level - depth));
+            return 0;
+        }
+
+        code.aload(environments.get(0));
+        return depth - level;
+    }
+}
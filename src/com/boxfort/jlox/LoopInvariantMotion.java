@@ -0,0 +1,553 @@
+package com.boxfort.jlox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+// Hoists loop-invariant expressions out of while loops. An expression
+// is hoisted into a temporary declared just before the loop when
+//
+//  - it has no side effects,
+//  - every variable it reads is declared outside the loop and never
+//    assigned within it, and
+//  - it can't raise a runtime error, judged by the types the variables
+//    can hold.
+//
+// The last rule matters as the hoisted expression is evaluated once
+// even if the loop body never runs, or never reaches it.
+class LoopInvariantMotion {
+    private enum Type { NIL, BOOLEAN, NUMBER, STRING, UNKNOWN }
+
+    private static class Variable {
+        // The number of loops enclosing the declaration.
+        final int loopLevel;
+        Type type;
+
+        Variable(int loopLevel, Type type) {
+            this.loopLevel = loopLevel;
+            this.type = type;
+        }
+    }
+
+    private static class Definition {
+        final Variable variable;
+        final Expr value;
+
+        Definition(Variable variable, Expr value) {
+            this.variable = variable;
+            this.value = value;
+        }
+    }
+
+    // The variable each Expr.Variable and Expr.Assign binds to.
+    private final Map<Expr, Variable> bindings = new IdentityHashMap<>();
+    private final Map<Stmt.While, Integer> loopLevels = new IdentityHashMap<>();
+    private final Map<Stmt.While, Set<Variable>> assigned = new IdentityHashMap<>();
+    private final List<Definition> definitions = new ArrayList<>();
+    private int temporaries = 0;
+
+    List<Stmt> apply(List<Stmt> statements) {
+        Analyzer analyzer = new Analyzer();
+        for (Stmt statement : statements) {
+            statement.accept(analyzer);
+        }
+        inferTypes();
+
+        List<Stmt> result = new ArrayList<>();
+        for (Stmt statement : statements) {
+            result.add(transform(statement));
+        }
+
+        return result;
+    }
+
+    // Narrows each variable to a single type if every value it's
+    // defined or assigned with has that type, assuming the same of the
+    // other variables until proven otherwise.
+    private void inferTypes() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Definition definition : definitions) {
+                Variable variable = definition.variable;
+                if (variable.type != Type.UNKNOWN &&
+                    typeOf(definition.value) != variable.type) {
+                    variable.type = Type.UNKNOWN;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private Stmt transform(Stmt stmt) {
+        if (stmt instanceof Stmt.Block) {
+            List<Stmt> statements = new ArrayList<>();
+            for (Stmt statement : ((Stmt.Block)stmt).statements) {
+                statements.add(transform(statement));
+            }
+            return new Stmt.Block(statements);
+        }
+
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If)stmt;
+            return new Stmt.If(ifStmt.condition, transform(ifStmt.thenBranch),
+                ifStmt.elseBranch == null ? null : transform(ifStmt.elseBranch));
+        }
+
+        if (stmt instanceof Stmt.While) {
+            return transformLoop((Stmt.While)stmt);
+        }
+
+        return stmt;
+    }
+
+    // Inner loops are transformed first, so expressions they hoisted
+    // may be hoisted again out of the outer loop.
+    private Stmt transformLoop(Stmt.While loop) {
+        Stmt body = transform(loop.body);
+
+        List<Stmt> temporaries = new ArrayList<>();
+        Expr condition = hoist(loop.condition, loop, temporaries);
+        body = hoist(body, loop, temporaries);
+
+        Stmt.While result = new Stmt.While(condition, body);
+        if (temporaries.isEmpty()) return result;
+
+        temporaries.add(result);
+        return new Stmt.Block(temporaries);
+    }
+
+    private Stmt hoist(Stmt stmt, Stmt.While loop, List<Stmt> temporaries) {
+        if (stmt instanceof Stmt.Block) {
+            List<Stmt> statements = new ArrayList<>();
+            for (Stmt statement : ((Stmt.Block)stmt).statements) {
+                statements.add(hoist(statement, loop, temporaries));
+            }
+            return new Stmt.Block(statements);
+        }
+
+        if (stmt instanceof Stmt.Expression) {
+            return new Stmt.Expression(
+                hoist(((Stmt.Expression)stmt).expression, loop, temporaries));
+        }
+
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If)stmt;
+            return new Stmt.If(
+                hoist(ifStmt.condition, loop, temporaries),
+                hoist(ifStmt.thenBranch, loop, temporaries),
+                ifStmt.elseBranch == null ? null :
+                    hoist(ifStmt.elseBranch, loop, temporaries));
+        }
+
+        if (stmt instanceof Stmt.Print) {
+            return new Stmt.Print(
+                hoist(((Stmt.Print)stmt).expression, loop, temporaries));
+        }
+
+        if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var)stmt;
+            if (var.initializer == null) return var;
+            return new Stmt.Var(var.name,
+                hoist(var.initializer, loop, temporaries));
+        }
+
+        Stmt.While inner = (Stmt.While)stmt;
+        return new Stmt.While(hoist(inner.condition, loop, temporaries),
+            hoist(inner.body, loop, temporaries));
+    }
+
+    // Replaces the largest invariant subexpressions with temporaries.
+    private Expr hoist(Expr expr, Stmt.While loop, List<Stmt> temporaries) {
+        if (isWorthHoisting(expr) && isInvariant(expr, loop) && isSafe(expr)) {
+            Token name = new Token(TokenType.IDENTIFIER,
+                "$inv" + this.temporaries++, null, line(expr));
+            temporaries.add(new Stmt.Var(name, expr));
+
+            Expr.Variable temporary = new Expr.Variable(name);
+            bindings.put(temporary,
+                new Variable(loopLevels.get(loop) - 1, typeOf(expr)));
+            return temporary;
+        }
+
+        if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign)expr;
+            Expr value = hoist(assign.value, loop, temporaries);
+            if (value == assign.value) return expr;
+
+            Expr.Assign result = new Expr.Assign(assign.name, value);
+            bindings.put(result, bindings.get(assign));
+            return result;
+        }
+
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            Expr left = hoist(binary.left, loop, temporaries);
+            Expr right = hoist(binary.right, loop, temporaries);
+            if (left == binary.left && right == binary.right) return expr;
+            return new Expr.Binary(left, binary.operator, right);
+        }
+
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            Expr left = hoist(logical.left, loop, temporaries);
+            Expr right = hoist(logical.right, loop, temporaries);
+            if (left == logical.left && right == logical.right) return expr;
+            return new Expr.Logical(left, logical.operator, right);
+        }
+
+        if (expr instanceof Expr.Ternary) {
+            Expr.Ternary ternary = (Expr.Ternary)expr;
+            Expr condition = hoist(ternary.condition, loop, temporaries);
+            Expr left = hoist(ternary.left, loop, temporaries);
+            Expr right = hoist(ternary.right, loop, temporaries);
+            if (condition == ternary.condition && left == ternary.left &&
+                right == ternary.right) {
+                return expr;
+            }
+            return new Expr.Ternary(condition, ternary.operator, left, right);
+        }
+
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            Expr right = hoist(unary.right, loop, temporaries);
+            if (right == unary.right) return expr;
+            return new Expr.Unary(unary.operator, right);
+        }
+
+        if (expr instanceof Expr.Grouping) {
+            Expr.Grouping grouping = (Expr.Grouping)expr;
+            Expr inner = hoist(grouping.expression, loop, temporaries);
+            if (inner == grouping.expression) return expr;
+            return new Expr.Grouping(inner);
+        }
+
+        return expr;
+    }
+
+    // Literals and variables are as cheap to evaluate as a temporary.
+    private static boolean isWorthHoisting(Expr expr) {
+        if (expr instanceof Expr.Grouping) {
+            return isWorthHoisting(((Expr.Grouping)expr).expression);
+        }
+
+        return !(expr instanceof Expr.Literal || expr instanceof Expr.Variable);
+    }
+
+    private boolean isInvariant(Expr expr, Stmt.While loop) {
+        if (expr instanceof Expr.Variable) {
+            Variable variable = bindings.get(expr);
+            return variable != null &&
+                variable.loopLevel < loopLevels.get(loop) &&
+                !assigned.get(loop).contains(variable);
+        }
+
+        if (expr instanceof Expr.Assign) return false;
+
+        for (Expr operand : operands(expr)) {
+            if (!isInvariant(operand, loop)) return false;
+        }
+        return true;
+    }
+
+    // Whether evaluating the expression can never raise a runtime error.
+    private boolean isSafe(Expr expr) {
+        for (Expr operand : operands(expr)) {
+            if (!isSafe(operand)) return false;
+        }
+
+        if (expr instanceof Expr.Variable) {
+            // Unbound variables may be undefined globals.
+            return bindings.containsKey(expr);
+        }
+
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            return unary.operator.type == TokenType.BANG ||
+                typeOf(unary.right) == Type.NUMBER;
+        }
+
+        if (expr instanceof Expr.Ternary) {
+            return typeOf(((Expr.Ternary)expr).condition) == Type.BOOLEAN;
+        }
+
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            Type left = typeOf(binary.left);
+            Type right = typeOf(binary.right);
+            switch (binary.operator.type) {
+                case COMMA:
+                case EQUAL_EQUAL:
+                case BANG_EQUAL:
+                    return true;
+                case PLUS:
+                    return left == right &&
+                        (left == Type.NUMBER || left == Type.STRING);
+                case SLASH:
+                    // Only a non-zero literal divisor rules out division
+                    // by zero.
+                    return left == Type.NUMBER && right == Type.NUMBER &&
+                        binary.right instanceof Expr.Literal &&
+                        (double)((Expr.Literal)binary.right).value != 0;
+                default:
+                    return left == Type.NUMBER && right == Type.NUMBER;
+            }
+        }
+
+        return expr instanceof Expr.Literal || expr instanceof Expr.Grouping ||
+            expr instanceof Expr.Logical;
+    }
+
+    // The type of the value the expression produces, if it produces one
+    // without raising an error.
+    private Type typeOf(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)expr).value;
+            if (value == null) return Type.NIL;
+            if (value instanceof Boolean) return Type.BOOLEAN;
+            if (value instanceof Double) return Type.NUMBER;
+            if (value instanceof String) return Type.STRING;
+            return Type.UNKNOWN;
+        }
+
+        if (expr instanceof Expr.Variable) {
+            Variable variable = bindings.get(expr);
+            return variable == null ? Type.UNKNOWN : variable.type;
+        }
+
+        if (expr instanceof Expr.Assign) {
+            return typeOf(((Expr.Assign)expr).value);
+        }
+
+        if (expr instanceof Expr.Grouping) {
+            return typeOf(((Expr.Grouping)expr).expression);
+        }
+
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            return unary.operator.type == TokenType.BANG ?
+                Type.BOOLEAN : Type.NUMBER;
+        }
+
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            return join(typeOf(logical.left), typeOf(logical.right));
+        }
+
+        if (expr instanceof Expr.Ternary) {
+            Expr.Ternary ternary = (Expr.Ternary)expr;
+            return join(typeOf(ternary.left), typeOf(ternary.right));
+        }
+
+        Expr.Binary binary = (Expr.Binary)expr;
+        switch (binary.operator.type) {
+            case COMMA:
+                return typeOf(binary.right);
+            case MINUS:
+            case STAR:
+            case SLASH:
+                return Type.NUMBER;
+            case PLUS: {
+                // Mixed operands raise an error, so one known side
+                // decides the type.
+                Type left = typeOf(binary.left);
+                Type right = typeOf(binary.right);
+                if (left == Type.NUMBER || right == Type.NUMBER) return Type.NUMBER;
+                if (left == Type.STRING || right == Type.STRING) return Type.STRING;
+                return Type.UNKNOWN;
+            }
+            default:
+                return Type.BOOLEAN;
+        }
+    }
+
+    private static Type join(Type left, Type right) {
+        return left == right ? left : Type.UNKNOWN;
+    }
+
+    private static List<Expr> operands(Expr expr) {
+        List<Expr> operands = new ArrayList<>();
+        if (expr instanceof Expr.Assign) {
+            operands.add(((Expr.Assign)expr).value);
+        } else if (expr instanceof Expr.Binary) {
+            operands.add(((Expr.Binary)expr).left);
+            operands.add(((Expr.Binary)expr).right);
+        } else if (expr instanceof Expr.Logical) {
+            operands.add(((Expr.Logical)expr).left);
+            operands.add(((Expr.Logical)expr).right);
+        } else if (expr instanceof Expr.Ternary) {
+            operands.add(((Expr.Ternary)expr).condition);
+            operands.add(((Expr.Ternary)expr).left);
+            operands.add(((Expr.Ternary)expr).right);
+        } else if (expr instanceof Expr.Unary) {
+            operands.add(((Expr.Unary)expr).right);
+        } else if (expr instanceof Expr.Grouping) {
+            operands.add(((Expr.Grouping)expr).expression);
+        }
+
+        return operands;
+    }
+
+    // The line of the first token in the expression, for the temporary.
+    private static int line(Expr expr) {
+        if (expr instanceof Expr.Variable) return ((Expr.Variable)expr).name.line;
+        if (expr instanceof Expr.Binary) return ((Expr.Binary)expr).operator.line;
+        if (expr instanceof Expr.Logical) return ((Expr.Logical)expr).operator.line;
+        if (expr instanceof Expr.Ternary) return ((Expr.Ternary)expr).operator.line;
+        if (expr instanceof Expr.Unary) return ((Expr.Unary)expr).operator.line;
+        if (expr instanceof Expr.Assign) return ((Expr.Assign)expr).name.line;
+
+        for (Expr operand : operands(expr)) {
+            return line(operand);
+        }
+        return 0;
+    }
+
+    // Binds variables to their declarations, records which variables
+    // each loop assigns, and every value each variable can take.
+    private class Analyzer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final Stack<Map<String, Variable>> scopes = new Stack<>();
+        private final Map<String, Variable> globals = new HashMap<>();
+        private final Stack<Stmt.While> loops = new Stack<>();
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            scopes.push(new HashMap<>());
+            for (Stmt statement : stmt.statements) {
+                statement.accept(this);
+            }
+            scopes.pop();
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            stmt.condition.accept(this);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            Expr initializer = stmt.initializer != null ?
+                stmt.initializer : new Expr.Literal(null);
+            initializer.accept(this);
+
+            // A redeclared global is the same variable defined again.
+            Variable variable = scopes.isEmpty() ?
+                globals.get(stmt.name.lexeme) : null;
+            if (variable == null) {
+                variable = new Variable(loops.size(), typeOf(initializer));
+            }
+
+            if (scopes.isEmpty()) {
+                globals.put(stmt.name.lexeme, variable);
+            } else {
+                scopes.peek().put(stmt.name.lexeme, variable);
+            }
+
+            definitions.add(new Definition(variable, initializer));
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            loops.push(stmt);
+            loopLevels.put(stmt, loops.size());
+            assigned.put(stmt, new HashSet<>());
+
+            stmt.condition.accept(this);
+            stmt.body.accept(this);
+            loops.pop();
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            expr.value.accept(this);
+
+            Variable variable = lookUp(expr.name);
+            if (variable != null) {
+                bindings.put(expr, variable);
+                definitions.add(new Definition(variable, expr.value));
+                for (Stmt.While loop : loops) {
+                    assigned.get(loop).add(variable);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            expr.condition.accept(this);
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            Variable variable = lookUp(expr.name);
+            if (variable != null) bindings.put(expr, variable);
+            return null;
+        }
+
+        private Variable lookUp(Token name) {
+            for (int i = scopes.size() - 1; i >= 0; i--) {
+                Variable variable = scopes.get(i).get(name.lexeme);
+                if (variable != null) return variable;
+            }
+
+            return globals.get(name.lexeme);
+        }
+    }
+}
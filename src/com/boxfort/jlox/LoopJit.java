@@ -0,0 +1,69 @@
+package com.boxfort.jlox;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+// Counts the iterations of each while loop and compiles those that get
+// hot to JVM bytecode so HotSpot can compile them further.
+class LoopJit {
+    static final int THRESHOLD = 1000;
+
+    private final boolean enabled;
+    // Statements compare by identity. Weak keys let loops that have
+    // finished running, such as those of a streamed script, be freed.
+    private final Map<Stmt.While, Profile> profiles = new WeakHashMap<>();
+
+    LoopJit(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    Profile profile(Stmt.While loop) {
+        return profiles.computeIfAbsent(loop, key -> new Profile());
+    }
+
+    // Profiles don't hold on to their loop, which would keep it alive
+    // as a key.
+    class Profile {
+        private int iterations = 0;
+        private CompiledLoop compiled = null;
+
+        // Set once compiling failed or the compiled loop deoptimized.
+        private boolean disabled = !enabled;
+
+        // Runs the compiled loop if there is one. Returns true if it ran
+        // the loop to completion.
+        boolean enter(Interpreter interpreter, Environment environment) {
+            if (compiled == null || disabled) return false;
+            return run(interpreter, environment);
+        }
+
+        // Called by the Interpreter after each iteration. Once the loop
+        // is hot it's compiled and the remaining iterations run in
+        // compiled code. Returns true if that ran the loop to completion.
+        boolean backEdge(Stmt.While loop, Interpreter interpreter,
+                         Environment environment) {
+            if (disabled || ++iterations < THRESHOLD) return false;
+
+            if (compiled == null) {
+                try {
+                    compiled = new LoopCompiler().compile(loop);
+                } catch (ClassTooLargeException e) {
+                    // Too big for a single method, keep interpreting.
+                    disabled = true;
+                    return false;
+                }
+            }
+
+            return run(interpreter, environment);
+        }
+
+        private boolean run(Interpreter interpreter, Environment environment) {
+            try {
+                return compiled.run(interpreter, environment);
+            } finally {
+                // Don't bother recompiling loops whose speculation failed.
+                if (compiled.isInvalidated()) disabled = true;
+            }
+        }
+    }
+}
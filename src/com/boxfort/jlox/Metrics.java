@@ -0,0 +1,93 @@
+package com.boxfort.jlox;
+
+import java.io.PrintStream;
+
+import jdk.jfr.FlightRecorder;
+
+// Totals of what running a script did: the time spent in each phase
+// and what it handled, and counts kept by the interpreters. When jlox
+// was started recording, phases are also recorded as JFR Events. Not
+// thread safe, each script runs with its own.
+final class Metrics {
+    enum Phase { SCAN, PARSE, OPTIMIZE, RESOLVE, INTERPRET }
+
+    // Whether jlox was started with a recording, as by
+    // -XX:StartFlightRecording. Checked once, so the event classes, and
+    // the hundred or so of JFR's they load, are left alone otherwise.
+    // Recordings started later by jcmd don't see jlox's events.
+    static final boolean RECORDING = FlightRecorder.isInitialized();
+
+    // A phase being timed.
+    static final class Timing {
+        final Phase phase;
+        final long start;
+        // Only when recording.
+        final Events.Phase event;
+
+        Timing(Phase phase, long start, Events.Phase event) {
+            this.phase = phase;
+            this.start = start;
+            this.event = event;
+        }
+    }
+
+    private final long[] nanos = new long[Phase.values().length];
+    private final long[] runs = new long[Phase.values().length];
+
+    long tokens = 0;
+    long statements = 0;
+
+    // Counted by the interpreters when they're given these metrics.
+    // Compiled loops count nothing. Global variables are looked up
+    // directly, so count as a chain depth of 0.
+    long lookups = 0;
+    long lookupDepth = 0;
+    long blocks = 0;
+    long runtimeErrors = 0;
+
+    Timing begin(Phase phase) {
+        return begin(phase, null);
+    }
+
+    // The engine is only recorded by the interpret phase's event.
+    Timing begin(Phase phase, String engine) {
+        Events.Phase event = RECORDING ? Events.begin(phase, engine) : null;
+        return new Timing(phase, System.nanoTime(), event);
+    }
+
+    // Ends the phase, which handled count tokens if it's scanning, or
+    // statements otherwise.
+    void end(Timing timing, int count) {
+        int phase = timing.phase.ordinal();
+        nanos[phase] += System.nanoTime() - timing.start;
+        runs[phase]++;
+
+        if (timing.phase == Phase.SCAN) tokens += count;
+        if (timing.phase == Phase.PARSE) statements += count;
+
+        if (timing.event != null) Events.end(timing.event, count);
+    }
+
+    void lookup(int depth) {
+        lookups++;
+        if (depth > 0) lookupDepth += depth;
+    }
+
+    void print(PrintStream out) {
+        out.println("Metrics:");
+        for (Phase phase : Phase.values()) {
+            if (runs[phase.ordinal()] == 0) continue;
+
+            out.printf("  %-12s %10.3f ms%n", phase.name().toLowerCase(),
+                nanos[phase.ordinal()] / 1e6);
+        }
+
+        out.printf("  %-12s %10d%n", "tokens", tokens);
+        out.printf("  %-12s %10d%n", "statements", statements);
+        out.printf("  %-12s %10d%n", "lookups", lookups);
+        out.printf("  %-12s %10.3f%n", "chain depth",
+            lookups == 0 ? 0.0 : (double)lookupDepth / lookups);
+        out.printf("  %-12s %10d%n", "blocks", blocks);
+        out.printf("  %-12s %10d%n", "errors", runtimeErrors);
+    }
+}
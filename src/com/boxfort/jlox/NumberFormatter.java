@@ -0,0 +1,77 @@
+package com.boxfort.jlox;
+
+// Formats numbers the way Lox prints them, which is Double.toString()
+// less any trailing ".0". Integers below 2^53, most of what scripts
+// print, are formatted straight from their digits into a char array.
+// For them Double.toString() gives the exact digits, in scientific
+// notation from 10^7 up. Everything else is left to Double.toString(),
+// whose digits aren't always the shortest on older JDKs and so can't
+// be reproduced by a shortest round-trip algorithm.
+final class NumberFormatter {
+    // The longest number format() writes, "-9.007199254740991E15".
+    static final int MAX_LENGTH = 21;
+
+    private static final double MAX_EXACT = 0x1p53;
+    private static final long MAX_PLAIN = 10_000_000;
+
+    private NumberFormatter() {}
+
+    static String toString(double value) {
+        char[] chars = new char[MAX_LENGTH];
+        int end = format(value, chars, 0);
+        if (end == -1) return Double.toString(value);
+
+        return new String(chars, 0, end);
+    }
+
+    // Writes value into chars at offset if it's an integer below 2^53,
+    // given room for MAX_LENGTH characters. Returns where it ends, or -1
+    // if value must be formatted by Double.toString() instead.
+    static int format(double value, char[] chars, int offset) {
+        // Also rules out NaN.
+        if (!(Math.abs(value) < MAX_EXACT)) return -1;
+
+        long integer = (long)value;
+        if (integer != value) return -1;
+
+        // Zero is negative if its reciprocal is.
+        if (integer < 0 || (integer == 0 && 1 / value < 0)) {
+            chars[offset++] = '-';
+            integer = -integer;
+        }
+
+        if (integer < MAX_PLAIN) return digits(integer, chars, offset);
+
+        // Scientific notation, writing the digits one place along and
+        // then moving the first in front of the decimal point.
+        int exponent = digitCount(integer) - 1;
+        while (integer % 10 == 0) integer /= 10;
+
+        int end = digits(integer, chars, offset + 1);
+        chars[offset] = chars[offset + 1];
+        chars[offset + 1] = '.';
+        if (end == offset + 2) chars[end++] = '0';
+        chars[end++] = 'E';
+        return digits(exponent, chars, end);
+    }
+
+    private static int digits(long value, char[] chars, int offset) {
+        int end = offset + digitCount(value);
+        for (int i = end - 1; i >= offset; i--) {
+            chars[i] = (char)('0' + value % 10);
+            value /= 10;
+        }
+
+        return end;
+    }
+
+    private static int digitCount(long value) {
+        int count = 1;
+        while (value >= 10) {
+            value /= 10;
+            count++;
+        }
+
+        return count;
+    }
+}
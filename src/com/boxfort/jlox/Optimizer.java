@@ -0,0 +1,406 @@
+package com.boxfort.jlox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+import static com.boxfort.jlox.Values.*;
+
+// Simplifies a parsed program before it's resolved: folds constant
+// subexpressions, strips groupings, propagates variables that are
+// initialized with a constant and never reassigned, and removes
+// branches and loops that can never run. Loop-invariant expressions
+// are then hoisted out of the loops that remain.
+//
+// Nothing is folded that would raise a runtime error, so errors are
+// still reported when and where the original program would.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    private static class Declaration {
+        final Stmt.Var stmt;
+        boolean constant = true;
+
+        // The folded initializer, once computed.
+        Expr value = null;
+
+        Declaration(Stmt.Var stmt) {
+            this.stmt = stmt;
+        }
+    }
+
+    // The declaration each variable reference binds to.
+    private final Map<Expr.Variable, Declaration> bindings =
+        new IdentityHashMap<>();
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        new Binder().bind(statements);
+        return new LoopInvariantMotion().apply(optimizeAll(statements));
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        return new Stmt.Block(optimizeAll(stmt.statements));
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+
+        // A constant on its own does nothing.
+        if (expression instanceof Expr.Literal) return null;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        Stmt thenBranch = optimize(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+
+        if (condition instanceof Expr.Literal) {
+            return isTruthy(((Expr.Literal)condition).value) ? thenBranch : elseBranch;
+        }
+
+        if (thenBranch == null) thenBranch = new Stmt.Block(new ArrayList<>());
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        return new Stmt.Print(optimize(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+        return new Stmt.Var(stmt.name, optimize(stmt.initializer));
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal &&
+            !isTruthy(((Expr.Literal)condition).value)) {
+            return null;
+        }
+
+        Stmt body = optimize(stmt.body);
+        if (body == null) body = new Stmt.Block(new ArrayList<>());
+        return new Stmt.While(condition, body);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        return new Expr.Assign(expr.name, optimize(expr.value));
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        Expr condition = optimize(expr.condition);
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        // All three operands are always evaluated, so the untaken one
+        // can only be dropped if evaluating it does nothing.
+        if (condition instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)condition).value;
+            if (value instanceof Boolean) {
+                boolean taken = (Boolean)value;
+                if (taken && right instanceof Expr.Literal) return left;
+                if (!taken && left instanceof Expr.Literal) return right;
+            }
+        }
+
+        return new Expr.Ternary(condition, expr.operator, left, right);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if (expr.operator.type == TokenType.COMMA &&
+            left instanceof Expr.Literal) {
+            return right;
+        }
+
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            try {
+                Object value = Interpreter.binary(expr.operator,
+                    ((Expr.Literal)left).value, ((Expr.Literal)right).value);
+
+                // Literals hold plain strings, not ropes.
+                if (isString(value)) value = value.toString();
+                return new Expr.Literal(value);
+            } catch (RuntimeError error) {
+                // Leave it for the interpreter to report.
+            }
+        }
+
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if (left instanceof Expr.Literal) {
+            boolean truthy = isTruthy(((Expr.Literal)left).value);
+            boolean isOr = expr.operator.type == TokenType.OR;
+            return truthy == isOr ? left : right;
+        }
+
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+
+        if (right instanceof Expr.Literal) {
+            try {
+                return new Expr.Literal(Interpreter.unary(expr.operator,
+                    ((Expr.Literal)right).value));
+            } catch (RuntimeError error) {
+                // Leave it for the interpreter to report.
+            }
+        }
+
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        Declaration declaration = bindings.get(expr);
+        if (declaration != null && declaration.constant) {
+            if (declaration.value == null) {
+                Expr initializer = declaration.stmt.initializer;
+                declaration.value = initializer == null ?
+                    new Expr.Literal(null) : optimize(initializer);
+            }
+
+            if (declaration.value instanceof Expr.Literal) {
+                return declaration.value;
+            }
+        }
+
+        return expr;
+    }
+
+    private List<Stmt> optimizeAll(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>();
+        for (Stmt statement : statements) {
+            Stmt result = optimize(statement);
+            if (result != null) optimized.add(result);
+        }
+
+        return optimized;
+    }
+
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // Binds variable references to their declarations with the same
+    // scoping rules as the Resolver, and rules out propagating any
+    // variable that is assigned, redeclared, or may be read before its
+    // declaration has run.
+    private class Binder implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final Stack<Map<String, Declaration>> scopes = new Stack<>();
+
+        // Globals declared so far. Globals may also be defined outside
+        // of the statements being optimized, such as on earlier lines
+        // in the REPL.
+        private final Map<String, Declaration> globals = new HashMap<>();
+
+        // Global declarations not yet reached.
+        private final Map<String, Declaration> undeclared = new HashMap<>();
+
+        private Declaration initializing = null;
+
+        void bind(List<Stmt> statements) {
+            // Find every global declaration up front so references to a
+            // global that is declared later can rule it out.
+            for (Stmt statement : statements) {
+                if (statement instanceof Stmt.Var) {
+                    Stmt.Var var = (Stmt.Var)statement;
+                    Declaration declaration = new Declaration(var);
+                    if (undeclared.containsKey(var.name.lexeme)) {
+                        undeclared.get(var.name.lexeme).constant = false;
+                        declaration.constant = false;
+                    }
+                    undeclared.put(var.name.lexeme, declaration);
+                }
+            }
+
+            for (Stmt statement : statements) {
+                statement.accept(this);
+            }
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            scopes.push(new HashMap<>());
+            for (Stmt statement : stmt.statements) {
+                statement.accept(this);
+            }
+            scopes.pop();
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            stmt.condition.accept(this);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            Declaration declaration;
+            if (scopes.isEmpty()) {
+                declaration = undeclared.remove(stmt.name.lexeme);
+                if (declaration == null || declaration.stmt != stmt) {
+                    // Redeclared global, ruled out when first found.
+                    declaration = new Declaration(stmt);
+                    declaration.constant = false;
+                }
+            } else {
+                declaration = new Declaration(stmt);
+            }
+
+            // Reading the variable in its own initializer reads a previous
+            // definition, in the same scope or the one it shadows.
+            initializing = declaration;
+            if (stmt.initializer != null) stmt.initializer.accept(this);
+            initializing = null;
+
+            declare(stmt.name, declaration);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            stmt.condition.accept(this);
+            stmt.body.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            expr.value.accept(this);
+
+            Declaration declaration = lookUp(expr.name);
+            if (declaration != null) ruleOut(declaration);
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            expr.condition.accept(this);
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            if (initializing != null &&
+                initializing.stmt.name.lexeme.equals(expr.name.lexeme)) {
+                ruleOut(initializing);
+                return null;
+            }
+
+            Declaration declaration = lookUp(expr.name);
+            if (declaration != null) {
+                bindings.put(expr, declaration);
+            } else if (undeclared.containsKey(expr.name.lexeme)) {
+                // Read before its declaration ran.
+                ruleOut(undeclared.get(expr.name.lexeme));
+            }
+            return null;
+        }
+
+        private void ruleOut(Declaration declaration) {
+            declaration.constant = false;
+        }
+
+        private void declare(Token name, Declaration declaration) {
+            if (scopes.isEmpty()) {
+                globals.put(name.lexeme, declaration);
+            } else {
+                scopes.peek().put(name.lexeme, declaration);
+            }
+        }
+
+        private Declaration lookUp(Token name) {
+            for (int i = scopes.size() - 1; i >= 0; i--) {
+                Declaration declaration = scopes.get(i).get(name.lexeme);
+                if (declaration != null) return declaration;
+            }
+
+            return globals.get(name.lexeme);
+        }
+    }
+}
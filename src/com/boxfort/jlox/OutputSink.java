@@ -0,0 +1,20 @@
+package com.boxfort.jlox;
+
+// Where the output of print statements goes. The interpreters write
+// every line through one of these rather than System.out, so output
+// can be buffered, sent to a file, or captured by code embedding jlox.
+public interface OutputSink {
+    // Writes one line of output, without its line terminator.
+    void println(String line);
+
+    // Writes a Lox value on a line of its own, as formatted by
+    // Values.stringify(). Sinks may format it straight into a buffer.
+    default void printValue(Object value) {
+        println(Values.stringify(value));
+    }
+
+    // Writes out anything buffered. Called before errors are reported,
+    // before the REPL prompts, and on exit, so output and errors appear
+    // in the order they happened.
+    default void flush() {}
+}
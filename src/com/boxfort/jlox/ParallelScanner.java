@@ -0,0 +1,123 @@
+package com.boxfort.jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Scans large sources in chunks on a ForkJoinPool. The source is split
+// just after newlines and each chunk is scanned concurrently, on the
+// guess that it starts outside any string or comment.
+//
+// The chunks are then stitched together in order. A chunk's scanner
+// stops wherever its last token, string or comment ends, which is past
+// the end of the chunk if one runs over it. The following chunk was
+// then scanned from the wrong place, so it's scanned again from where
+// the previous one stopped, or skipped if that is past its end too.
+//
+// Lines are counted from 1 within each chunk and moved down by the
+// newlines in the chunks before it when stitching. Errors are held
+// until then too, so only those of chunks that were scanned from the
+// right place are reported, in source order. Identifiers in chunks
+// that are thrown away still end up interned, but only in the table of
+// the program being scanned, which goes when it does.
+class ParallelScanner {
+    // Smaller sources aren't worth splitting.
+    static final int MIN_CHUNK_SIZE = 256 * 1024;
+
+    private static class Chunk {
+        final int start;
+        final TokenBuffer tokens;
+        final int end;
+        final int newlines;
+        final List<Scanner.ScanError> errors;
+
+        Chunk(char[] source, int start, int to, Symbols symbols) {
+            Scanner scanner = new Scanner(source, start, symbols);
+            this.start = start;
+            this.tokens = scanner.scanChunk(to);
+            this.end = scanner.position();
+            this.newlines = scanner.newlines();
+            this.errors = scanner.errors();
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final Symbols symbols;
+    private final ErrorReporter reporter;
+
+    ParallelScanner(Symbols symbols, ErrorReporter reporter) {
+        this(ForkJoinPool.commonPool(), symbols, reporter);
+    }
+
+    ParallelScanner(ForkJoinPool pool, Symbols symbols, ErrorReporter reporter) {
+        this.pool = pool;
+        this.symbols = symbols;
+        this.reporter = reporter;
+    }
+
+    TokenBuffer scanTokens(String source) {
+        // Nothing to gain from splitting with a single thread.
+        if (pool.getParallelism() < 2 || source.length() < 2 * MIN_CHUNK_SIZE) {
+            return new Scanner(source, symbols, reporter).scanTokens();
+        }
+
+        char[] chars = source.toCharArray();
+        int[] bounds = split(chars);
+
+        List<ForkJoinTask<Chunk>> chunks = new ArrayList<>();
+        for (int i = 0; i < bounds.length - 1; i++) {
+            int start = bounds[i];
+            int end = bounds[i + 1];
+            chunks.add(pool.submit(() -> new Chunk(chars, start, end, symbols)));
+        }
+
+        TokenBuffer tokens = new TokenBuffer(chars, symbols);
+        int position = 0;
+        int lineOffset = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i).join();
+
+            // Swallowed by a string or comment in an earlier chunk.
+            if (position >= bounds[i + 1]) continue;
+
+            if (chunk.start != position) {
+                chunk = new Chunk(chars, position, bounds[i + 1], symbols);
+            }
+
+            tokens.append(chunk.tokens, lineOffset);
+            for (Scanner.ScanError error : chunk.errors) {
+                reporter.error(error.line + lineOffset, error.message);
+            }
+
+            lineOffset += chunk.newlines;
+            position = chunk.end;
+        }
+
+        tokens.add(TokenType.EOF, chars.length, 0, lineOffset + 1);
+        return tokens;
+    }
+
+    // Returns the offsets the chunks start at, followed by the length of
+    // the source. There are a few chunks per thread so that a chunk
+    // that must be scanned again delays the others less.
+    private int[] split(char[] source) {
+        int size = Math.max(MIN_CHUNK_SIZE,
+            source.length / (pool.getParallelism() * 4));
+
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+
+        int next = size;
+        while (next < source.length) {
+            while (next < source.length && source[next - 1] != '\n') next++;
+            if (next >= source.length) break;
+
+            bounds.add(next);
+            next += size;
+        }
+
+        bounds.add(source.length);
+        return bounds.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
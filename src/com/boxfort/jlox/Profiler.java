@@ -0,0 +1,130 @@
+package com.boxfort.jlox;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.boxfort.jlox.ProfilingInterpreter.Frame;
+
+// Samples what a ProfilingInterpreter is executing from a background
+// thread at a fixed interval, counting how often each stack is seen.
+// Samples taken between top-level statements aren't counted.
+class Profiler {
+    // Sampling more often than this slows a single core down noticeably.
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(
+        Long.getLong("jlox.profile.interval", 10));
+    private static final int REPORT_LINES = 20;
+
+    private final ProfilingInterpreter interpreter;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // Only touched by the sampling thread until it's stopped.
+    private final Map<Frame, long[]> samples = new HashMap<>();
+    private long total = 0;
+
+    Profiler(ProfilingInterpreter interpreter) {
+        this.interpreter = interpreter;
+        this.thread = new Thread(this::run, "jlox-profiler");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            LockSupport.parkNanos(INTERVAL);
+
+            Frame frame = interpreter.sample();
+            if (frame == null) continue;
+
+            samples.computeIfAbsent(frame, key -> new long[1])[0]++;
+            total++;
+        }
+    }
+
+    // Writes each stack seen on a line of its own, outermost frame first
+    // and separated by ';', followed by its count. This is the collapsed
+    // format read by flamegraph.pl and speedscope.
+    void writeCollapsed(Path path) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+            for (Map.Entry<Frame, long[]> entry : samples.entrySet()) {
+                writer.write(stack(entry.getKey()));
+                writer.write(' ');
+                writer.write(Long.toString(entry.getValue()[0]));
+                writer.newLine();
+            }
+        }
+    }
+
+    private static String stack(Frame frame) {
+        List<Frame> frames = new ArrayList<>();
+        for (; frame != null; frame = frame.parent) frames.add(frame);
+
+        StringBuilder stack = new StringBuilder();
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            stack.append(frames.get(i).name).append(':').append(frames.get(i).line);
+            if (i > 0) stack.append(';');
+        }
+        return stack.toString();
+    }
+
+    // Prints the lines that took the most samples. Self counts samples
+    // taken executing the line's own statement and total counts those
+    // taken anywhere inside it. Source is the script's lines, or null.
+    void report(PrintStream out, List<String> source) {
+        Map<Integer, long[]> lines = new HashMap<>();
+        for (Map.Entry<Frame, long[]> entry : samples.entrySet()) {
+            long count = entry.getValue()[0];
+            Frame frame = entry.getKey();
+            lines.computeIfAbsent(frame.line, line -> new long[2])[0] += count;
+
+            // A line that's on the stack more than once counts once.
+            Set<Integer> seen = new HashSet<>();
+            for (; frame != null; frame = frame.parent) {
+                if (seen.add(frame.line)) {
+                    lines.computeIfAbsent(frame.line, line -> new long[2])[1] += count;
+                }
+            }
+        }
+
+        List<Map.Entry<Integer, long[]>> hottest = new ArrayList<>(lines.entrySet());
+        hottest.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+
+        out.printf("Profile: %d samples every %d ms%n", total,
+            TimeUnit.NANOSECONDS.toMillis(INTERVAL));
+        if (total == 0) return;
+
+        out.println("   line    self   total  source");
+        for (int i = 0; i < Math.min(REPORT_LINES, hottest.size()); i++) {
+            int line = hottest.get(i).getKey();
+            long[] counts = hottest.get(i).getValue();
+            String text = source != null && line >= 1 && line <= source.size()
+                ? source.get(line - 1).trim() : "";
+            out.printf("%7d  %5.1f%%  %5.1f%%  %s%n", line,
+                100.0 * counts[0] / total, 100.0 * counts[1] / total, text);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.boxfort.jlox;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.List;
+
+// An Interpreter that publishes the statement it's executing for a
+// Profiler to sample. Each statement gets a frame naming it and its
+// line, linked to the frame of the statement it's nested in, so the
+// current frame is the whole stack. Frames are built before the
+// statements run, in an array indexed by the ids the Resolver gave the
+// statements, leaving an array load and two release stores per
+// statement. They're kept here rather than in the statements, which
+// other interpreters may be running at the same time. Only used with
+// --profile, so the plain Interpreter pays nothing for it.
+//
+// Loops compiled by the JIT run their bodies without executing the
+// statements, so their time goes to the while statement. Profiling
+// with --no-jit attributes it line by line.
+class ProfilingInterpreter extends Interpreter {
+    private static final VarHandle CURRENT;
+
+    static {
+        try {
+            CURRENT = MethodHandles.lookup().findVarHandle(
+                ProfilingInterpreter.class, "current", Frame.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    static final class Frame {
+        final String name;
+        final int line;
+        final Frame parent;
+
+        Frame(String name, int line, Frame parent) {
+            this.name = name;
+            this.line = line;
+            this.parent = parent;
+        }
+    }
+
+    // The frame of each statement, by id.
+    private Frame[] frames = new Frame[64];
+    // Written by the interpreting thread and read by the sampler.
+    private Frame current;
+    // The line of the last token seen building frames, for statements
+    // without tokens of their own.
+    private int line = 1;
+
+    ProfilingInterpreter(boolean enableJit, OutputSink output,
+                         ErrorReporter reporter) {
+        super(enableJit, output, reporter);
+    }
+
+    @Override
+    void interpret(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            addFrames(statement, null);
+        }
+
+        try {
+            super.interpret(statements);
+        } finally {
+            CURRENT.setRelease(this, null);
+        }
+    }
+
+    @Override
+    void execute(Stmt stmt) {
+        Frame previous = current;
+        int id = stmt.id;
+        CURRENT.setRelease(this, id >= 0 && id < frames.length ? frames[id] : null);
+        super.execute(stmt);
+        // Not restored if a runtime error is thrown, but then the
+        // program stops and interpret() clears it.
+        CURRENT.setRelease(this, previous);
+    }
+
+    // The frame being executed, or null between top-level statements.
+    Frame sample() {
+        return (Frame)CURRENT.getAcquire(this);
+    }
+
+    private void addFrames(Stmt stmt, Frame parent) {
+        if (stmt instanceof Stmt.Block) {
+            Frame frame = addFrame(stmt, "block", line, parent);
+            for (Stmt statement : ((Stmt.Block)stmt).statements) {
+                addFrames(statement, frame);
+            }
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If)stmt;
+            Frame frame = addFrame(stmt, "if", line(ifStmt.condition), parent);
+            addFrames(ifStmt.thenBranch, frame);
+            if (ifStmt.elseBranch != null) addFrames(ifStmt.elseBranch, frame);
+        } else if (stmt instanceof Stmt.While) {
+            Stmt.While loop = (Stmt.While)stmt;
+            Frame frame = addFrame(stmt, "while", line(loop.condition), parent);
+            addFrames(loop.body, frame);
+        } else if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var)stmt;
+            line = var.name.line;
+            addFrame(stmt, "var " + var.name.lexeme, line, parent);
+        } else if (stmt instanceof Stmt.Print) {
+            addFrame(stmt, "print", line(((Stmt.Print)stmt).expression), parent);
+        } else if (stmt instanceof Stmt.Expression) {
+            addFrame(stmt, "expression",
+                line(((Stmt.Expression)stmt).expression), parent);
+        }
+    }
+
+    private Frame addFrame(Stmt stmt, String name, int line, Frame parent) {
+        Frame frame = new Frame(name, line, parent);
+        if (stmt.id < 0) return frame;
+
+        if (stmt.id >= frames.length) {
+            frames = Arrays.copyOf(frames, Math.max(stmt.id + 1, frames.length * 2));
+        }
+        frames[stmt.id] = frame;
+        return frame;
+    }
+
+    // The line of the first token in the expression, or of the last
+    // token seen if it has none, as for a literal.
+    private int line(Expr expr) {
+        int first = firstLine(expr);
+        if (first != -1) line = first;
+        return line;
+    }
+
+    private static int firstLine(Expr expr) {
+        if (expr instanceof Expr.Variable) return ((Expr.Variable)expr).name.line;
+        if (expr instanceof Expr.Assign) return ((Expr.Assign)expr).name.line;
+        if (expr instanceof Expr.Unary) return ((Expr.Unary)expr).operator.line;
+        if (expr instanceof Expr.Grouping) {
+            return firstLine(((Expr.Grouping)expr).expression);
+        }
+
+        int left = -1;
+        Token operator = null;
+        if (expr instanceof Expr.Binary) {
+            left = firstLine(((Expr.Binary)expr).left);
+            operator = ((Expr.Binary)expr).operator;
+        } else if (expr instanceof Expr.Logical) {
+            left = firstLine(((Expr.Logical)expr).left);
+            operator = ((Expr.Logical)expr).operator;
+        } else if (expr instanceof Expr.Ternary) {
+            left = firstLine(((Expr.Ternary)expr).condition);
+            operator = ((Expr.Ternary)expr).operator;
+        }
+
+        if (left != -1) return left;
+        return operator == null ? -1 : operator.line;
+    }
+}
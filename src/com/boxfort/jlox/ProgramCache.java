@@ -0,0 +1,114 @@
+package com.boxfort.jlox;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// Keeps the programs a JloxEngine compiled from the most recently used
+// sources, so scripts that are run over and over are only scanned and
+// parsed once. Safe to share between threads: looking a program up
+// takes no locks, and programs never change once compiled.
+//
+// When it's full the least recently used source is evicted, or near
+// enough. Rather than reorder a list on every hit, which would need a
+// lock, each hit just marks its entry as used. Sources wait in a queue
+// in the order they were added, and eviction takes them from the front,
+// sending any marked since they were last looked at to the back with
+// the mark cleared. This is the "clock" algorithm.
+public final class ProgramCache {
+    private static final class Entry {
+        final JloxEngine.Program program;
+        volatile boolean used = false;
+
+        Entry(JloxEngine.Program program) {
+            this.program = program;
+        }
+    }
+
+    private final JloxEngine engine;
+    private final int maximumSize;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Queue<String> clock = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // Holds up to maximumSize programs, compiled by the given engine.
+    public ProgramCache(JloxEngine engine, int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("Cache size must be at least 1.");
+        }
+
+        this.engine = engine;
+        this.maximumSize = maximumSize;
+    }
+
+    // The program compiled from source, compiling it on a miss. Threads
+    // missing on the same source at once may each compile it, but only
+    // one program is kept and all of them get that one.
+    public JloxEngine.Program get(String source) {
+        Entry entry = entries.get(source);
+        if (entry != null) {
+            hits.increment();
+            // Only write when it changes, so hot entries shared between
+            // cores aren't written on every hit.
+            if (!entry.used) entry.used = true;
+            return entry.program;
+        }
+
+        misses.increment();
+        Entry compiled = new Entry(engine.compile(source));
+        entry = entries.putIfAbsent(source, compiled);
+        if (entry != null) return entry.program;
+
+        clock.add(source);
+        evict();
+        return compiled.program;
+    }
+
+    // Compiles source if needed and runs it on the calling thread.
+    public JloxEngine.Result run(String source, OutputSink output) {
+        return engine.run(get(source), output);
+    }
+
+    private void evict() {
+        while (entries.size() > maximumSize) {
+            String source = clock.poll();
+            if (source == null) return;
+
+            Entry entry = entries.get(source);
+            if (entry == null) continue;
+
+            if (entry.used) {
+                entry.used = false;
+                clock.add(source);
+            } else if (entries.remove(source, entry)) {
+                evictions.increment();
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ProgramCache[size=" + size() + ", hits=" + hits() +
+            ", misses=" + misses() + ", evictions=" + evictions() + "]";
+    }
+}
@@ -0,0 +1,192 @@
+package com.boxfort.jlox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+// Binds every local variable reference to the (depth, slot) pair of
+// its declaration so the Interpreter can index straight into the
+// right Environment. References that aren't found in any enclosing
+// block are left unresolved and looked up as globals at runtime.
+//
+// It also numbers the statements in the order it reaches them, so
+// passes such as the ProfilingInterpreter can keep what they know
+// about each one in an array rather than on the tree.
+class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final Stack<Map<String, Integer>> scopes = new Stack<>();
+    private int nextId = 0;
+
+    void resolve(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            resolve(statement);
+        }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        // A block without declarations doesn't need an environment of
+        // its own and is left with a size of 0.
+        if (!declaresVariables(stmt)) {
+            resolve(stmt.statements);
+            return null;
+        }
+
+        beginScope();
+        resolve(stmt.statements);
+        stmt.size = scopes.peek().size();
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.thenBranch);
+        if (stmt.elseBranch != null) resolve(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        // The initializer is resolved first, so a variable named in its
+        // own initializer is the one it shadows, or a global.
+        if (stmt.initializer != null) {
+            resolve(stmt.initializer);
+        }
+        stmt.slot = declare(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        resolve(expr.value);
+
+        expr.depth = resolveDepth(expr.name);
+        expr.slot = resolveSlot(expr.name, expr.depth);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        resolve(expr.condition);
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        expr.depth = resolveDepth(expr.name);
+        expr.slot = resolveSlot(expr.name, expr.depth);
+        return null;
+    }
+
+    private void resolve(Stmt stmt) {
+        stmt.id = nextId++;
+        stmt.accept(this);
+    }
+
+    private void resolve(Expr expr) {
+        expr.accept(this);
+    }
+
+    private static boolean declaresVariables(Stmt.Block block) {
+        for (Stmt statement : block.statements) {
+            if (statement instanceof Stmt.Var) return true;
+        }
+
+        return false;
+    }
+
+    private void beginScope() {
+        scopes.push(new HashMap<>());
+    }
+
+    private void endScope() {
+        scopes.pop();
+    }
+
+    // Adds the variable to the innermost scope, shadowing any outer
+    // variable of the same name, and returns its slot, or -1 for a
+    // global. Declaring a variable again in the same scope reuses its
+    // slot, so the new definition replaces the old one.
+    private int declare(Token name) {
+        if (scopes.isEmpty()) return -1;
+
+        Map<String, Integer> scope = scopes.peek();
+        Integer slot = scope.get(name.lexeme);
+        if (slot == null) {
+            slot = scope.size();
+            scope.put(name.lexeme, slot);
+        }
+        return slot;
+    }
+
+    // Returns the number of environments between the current one and
+    // the one holding the variable, or -1 if it must be a global.
+    private int resolveDepth(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            if (scopes.get(i).containsKey(name.lexeme)) {
+                return scopes.size() - 1 - i;
+            }
+        }
+
+        return -1;
+    }
+
+    private int resolveSlot(Token name, int depth) {
+        if (depth == -1) return -1;
+        return scopes.get(scopes.size() - 1 - depth).get(name.lexeme);
+    }
+}
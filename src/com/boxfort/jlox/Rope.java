@@ -0,0 +1,88 @@
+package com.boxfort.jlox;
+
+import java.util.ArrayDeque;
+
+// A string built by concatenation. Concatenating only links the two
+// halves, so building a string up in a loop copies each character
+// once, when the rope is first flattened for printing or comparison,
+// instead of on every step. The flattened string is kept and the
+// halves dropped so they can be collected.
+final class Rope implements CharSequence {
+    // Strings shorter than this are cheaper to copy than to link.
+    private static final int MIN_LENGTH = 64;
+
+    private final int length;
+    // Each half is a String or another Rope. Both are null once the
+    // rope has been flattened.
+    private CharSequence left;
+    private CharSequence right;
+    private String flat;
+
+    private Rope(CharSequence left, CharSequence right, int length) {
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    // Both operands are Strings or Ropes.
+    static CharSequence concat(CharSequence left, CharSequence right) {
+        if (left.length() == 0) return right;
+        if (right.length() == 0) return left;
+
+        int length = left.length() + right.length();
+        if (length < 0) {
+            throw new OutOfMemoryError("Overflow: String length out of range");
+        }
+
+        if (length < MIN_LENGTH) return left.toString() + right.toString();
+        return new Rope(left, right, length);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) flatten();
+        return flat;
+    }
+
+    // Copies the leaves into place from the last one back, so the stack
+    // stays short for ropes built by appending, which lean left.
+    private void flatten() {
+        char[] chars = new char[length];
+        int end = length;
+
+        ArrayDeque<CharSequence> pending = new ArrayDeque<>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            CharSequence node = pending.pop();
+            if (node instanceof Rope && ((Rope)node).flat == null) {
+                Rope rope = (Rope)node;
+                pending.push(rope.left);
+                pending.push(rope.right);
+                continue;
+            }
+
+            String leaf = node.toString();
+            end -= leaf.length();
+            leaf.getChars(0, leaf.length(), chars, end);
+        }
+
+        flat = new String(chars);
+        left = null;
+        right = null;
+    }
+}
@@ -1,57 +1,201 @@
 package com.boxfort.jlox;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 import static com.boxfort.jlox.TokenType.*;
 
 public class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private static final int BUFFER_SIZE = 8192;
+
+    // Source characters are read from the reader into the buffer as
+    // they're needed, or all at once for a source string. Only the
+    // characters of the token being scanned are kept, so the buffer
+    // only grows past its initial size for very long tokens.
+    private final Reader reader;
+    private char[] buffer;
+    private int limit;
+    private boolean exhausted;
+
+    // Tokens scanned by scanTokens(), or the one scanned but not yet
+    // returned by nextToken().
+    private TokenBuffer tokens = null;
+    private Token next = null;
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and", AND);
-        keywords.put("class", CLASS);
-        keywords.put("else", ELSE);
-        keywords.put("false", FALSE);
-        keywords.put("for", FOR);
-        keywords.put("fun", FUN);
-        keywords.put("if", IF);
-        keywords.put("nil", NIL);
-        keywords.put("or", OR);
-        keywords.put("print", PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super", SUPER);
-        keywords.put("this", THIS);
-        keywords.put("true", TRUE);
-        keywords.put("var", VAR);
-        keywords.put("while", WHILE);
-    }
-
-    Scanner(String source) {
-        this.source = source;
-    }
-
-    List<Token> scanTokens() {
+    // Errors found scanning a chunk, held until the chunk is known to
+    // have been scanned from the right place. Null when errors are
+    // reported straight away.
+    private final List<ScanError> errors;
+    private final ErrorReporter reporter;
+    // Where identifiers are interned.
+    private final Symbols symbols;
+
+    static class ScanError {
+        final int line;
+        final String message;
+
+        ScanError(int line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+    }
+
+    Scanner(String source, Symbols symbols, ErrorReporter reporter) {
+        this.reader = null;
+        this.buffer = source.toCharArray();
+        this.limit = buffer.length;
+        this.exhausted = true;
+        this.errors = null;
+        this.reporter = reporter;
+        this.symbols = symbols;
+    }
+
+    // Scans part of source starting at from, with lines counted from 1
+    // there. Errors are collected rather than reported.
+    Scanner(char[] source, int from, Symbols symbols) {
+        this.reader = null;
+        this.buffer = source;
+        this.limit = source.length;
+        this.exhausted = true;
+        this.current = from;
+        this.errors = new ArrayList<>();
+        this.reporter = null;
+        this.symbols = symbols;
+    }
+
+    Scanner(Reader reader, Symbols symbols, ErrorReporter reporter) {
+        this.reader = reader;
+        this.buffer = new char[BUFFER_SIZE];
+        this.limit = 0;
+        this.exhausted = false;
+        this.errors = null;
+        this.reporter = reporter;
+        this.symbols = symbols;
+    }
+
+    // Scans the whole source at once. Only for sources given as a
+    // string, as the tokens refer back to the source characters.
+    TokenBuffer scanTokens() {
+        if (reader != null) {
+            throw new IllegalStateException("Can't buffer tokens from a reader.");
+        }
+
+        tokens = new TokenBuffer(buffer, symbols);
         while (!isAtEnd()) {
             start = current;
             scanToken();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
+        tokens.add(EOF, current, 0, line);
+        return tokens;
+    }
+
+    // Scans the tokens that start before to, without adding EOF. A
+    // string or comment that starts before to is scanned to its end,
+    // so scanning may stop past to.
+    TokenBuffer scanChunk(int to) {
+        tokens = new TokenBuffer(buffer, symbols);
+        while (current < to && !isAtEnd()) {
+            start = current;
+            scanToken();
+        }
+
         return tokens;
     }
 
+    // Where scanning stopped.
+    int position() {
+        return current;
+    }
+
+    // The number of lines ended by what has been scanned.
+    int newlines() {
+        return line - 1;
+    }
+
+    List<ScanError> errors() {
+        return errors;
+    }
+
+    // Scans tokens as they're asked for, ending with EOF.
+    Iterator<Token> iterator() {
+        return new Iterator<Token>() {
+            private boolean done = false;
+
+            @Override
+            public boolean hasNext() {
+                return !done;
+            }
+
+            @Override
+            public Token next() {
+                Token token = nextToken();
+                if (token.type == EOF) done = true;
+                return token;
+            }
+        };
+    }
+
+    Token nextToken() {
+        while (next == null) {
+            if (isAtEnd()) return new Token(EOF, "", null, line);
+
+            start = current;
+            scanToken();
+        }
+
+        Token token = next;
+        next = null;
+        return token;
+    }
+
     private boolean isAtEnd() {
-        return current >= source.length();
+        return !available(1);
+    }
+
+    // Makes sure there are at least count characters after current in
+    // the buffer, reading more if needed. Returns false if the source
+    // ends first.
+    private boolean available(int count) {
+        while (current + count > limit) {
+            if (exhausted) return false;
+            fill();
+        }
+
+        return true;
+    }
+
+    private void fill() {
+        // Drop everything before the current token.
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, limit - start);
+            limit -= start;
+            current -= start;
+            start = 0;
+        }
+
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+
+        try {
+            int read = reader.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                exhausted = true;
+            } else {
+                limit += read;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     private void scanToken() {
@@ -77,7 +221,11 @@ public class Scanner {
                 if (match('/')) {
                     // Consume the comment until the end of the line.
                     // We peek here so we don't consume newlines.
-                    while(peek() != '\n' && !isAtEnd()) advance();
+                    while(peek() != '\n' && !isAtEnd()) {
+                        advance();
+                        // Comments aren't tokens, so needn't be kept.
+                        start = current;
+                    }
                 } else if (match('*')) {
                     blockComment();
                 } else {
@@ -101,10 +249,7 @@ public class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Jlox.error(
-                        line,
-                        String.format("Unexpected character '%s'.", c)
-                    );
+                    error(String.format("Unexpected character '%s'.", c));
                 }
                 break;
         }
@@ -114,11 +259,57 @@ public class Scanner {
         while (isAlphaNumeric(peek())) advance();
 
         // See if the identifier is a reserved word.
-        String text = source.substring(start, current);
+        addToken(keyword(buffer, start, current - start));
+    }
+
+    // Classifies the identifier in source[start, start + length) as a
+    // keyword or IDENTIFIER. Keywords are told apart by their first one
+    // or two characters, so at most one is compared in full, straight
+    // from the source without creating a String.
+    private static TokenType keyword(char[] source, int start, int length) {
+        switch (source[start]) {
+            case 'a': return keyword(source, start, length, "and", AND);
+            case 'c': return keyword(source, start, length, "class", CLASS);
+            case 'e': return keyword(source, start, length, "else", ELSE);
+            case 'f':
+                if (length > 1) {
+                    switch (source[start + 1]) {
+                        case 'a': return keyword(source, start, length, "false", FALSE);
+                        case 'o': return keyword(source, start, length, "for", FOR);
+                        case 'u': return keyword(source, start, length, "fun", FUN);
+                    }
+                }
+                break;
+            case 'i': return keyword(source, start, length, "if", IF);
+            case 'n': return keyword(source, start, length, "nil", NIL);
+            case 'o': return keyword(source, start, length, "or", OR);
+            case 'p': return keyword(source, start, length, "print", PRINT);
+            case 'r': return keyword(source, start, length, "return", RETURN);
+            case 's': return keyword(source, start, length, "super", SUPER);
+            case 't':
+                if (length > 1) {
+                    switch (source[start + 1]) {
+                        case 'h': return keyword(source, start, length, "this", THIS);
+                        case 'r': return keyword(source, start, length, "true", TRUE);
+                    }
+                }
+                break;
+            case 'v': return keyword(source, start, length, "var", VAR);
+            case 'w': return keyword(source, start, length, "while", WHILE);
+        }
 
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER;
-        addToken(type);
+        return IDENTIFIER;
+    }
+
+    private static TokenType keyword(char[] source, int start, int length,
+                                     String keyword, TokenType type) {
+        if (length != keyword.length()) return IDENTIFIER;
+
+        for (int i = 0; i < length; i++) {
+            if (source[start + i] != keyword.charAt(i)) return IDENTIFIER;
+        }
+
+        return type;
     }
 
     private void blockComment() {
@@ -141,11 +332,12 @@ public class Scanner {
             }
 
             advance();
+            start = current;
         }
 
         // Unterminated block comment
         if (isAtEnd()) {
-            Jlox.error(line, "Unterminated block comment.");
+            error("Unterminated block comment.");
             return;
         }
     }
@@ -168,16 +360,14 @@ public class Scanner {
 
         // Unterminated string
         if (isAtEnd()) {
-            Jlox.error(line, "Unterminated string.");
+            error("Unterminated string.");
             return;
         }
 
         // The closing "
         advance();
 
-        // Trim the surrounding quotes
-        String value = source.substring(start + 1, current - 1);
-        addToken(STRING, value);
+        addToken(STRING);
     }
 
     private void number() {
@@ -190,8 +380,7 @@ public class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(NUMBER,
-                Double.parseDouble(source.substring(start, current)));
+        addToken(NUMBER);
     }
 
     private boolean isDigit(char c) {
@@ -200,7 +389,7 @@ public class Scanner {
 
     private boolean match(char expected) {
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
+        if (buffer[current] != expected) return false;
 
         current++;
         return true;
@@ -208,25 +397,34 @@ public class Scanner {
 
     private char peek() {
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return buffer[current];
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        if (!available(2)) return '\0';
+        return buffer[current + 1];
     }
 
     private char advance() {
-        current++;
-        return source.charAt(current - 1);
+        available(1);
+        return buffer[current++];
     }
 
-    private void addToken(TokenType type) {
-        addToken(type, null);
+
+    private void error(String message) {
+        if (errors != null) {
+            errors.add(new ScanError(line, message));
+        } else {
+            reporter.error(line, message);
+        }
     }
 
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+    private void addToken(TokenType type) {
+        if (tokens != null) {
+            tokens.add(type, start, current - start, line);
+        } else {
+            next = TokenBuffer.token(type, buffer, start, current - start, line,
+                symbols);
+        }
     }
 }
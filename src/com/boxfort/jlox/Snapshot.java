@@ -0,0 +1,136 @@
+package com.boxfort.jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+// Saves the global variables of a finished script to a file, so a
+// later run can start with them already defined rather than running
+// the script again. Useful for a long prelude of definitions shared by
+// many scripts: run it once with --snapshot, then start each script
+// with --restore.
+//
+// A snapshot holds the number of globals followed by each one in the
+// order they were defined, as its name and a tag byte followed by its
+// value. Lox values are only nil, booleans, numbers and strings, so
+// that's everything a script can leave behind. Snapshots are read back
+// through a memory-mapped buffer, and numbers are restored unboxed.
+final class Snapshot {
+    private static final int MAGIC = 0x4a4c5853; // "JLXS"
+    private static final int VERSION = 1;
+
+    // Value tags.
+    private static final byte NIL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte NUMBER = 3;
+    private static final byte STRING = 4;
+
+    private Snapshot() {}
+
+    // Writes the globals, whose names are interned in names.
+    static void write(Environment globals, Symbols names, Path path)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        int[] ids = globals.globalSymbols();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(ids.length);
+        for (int slot = 0; slot < ids.length; slot++) {
+            string(out, names.name(ids[slot]));
+
+            Object value = globals.getAt(0, slot);
+            if (value == null) {
+                out.writeByte(NIL);
+            } else if (value instanceof Boolean) {
+                out.writeByte((boolean)value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                out.writeByte(NUMBER);
+                out.writeDouble((double)value);
+            } else {
+                // Ropes are flattened here.
+                out.writeByte(STRING);
+                string(out, value.toString());
+            }
+        }
+        out.flush();
+
+        // Write to a temporary file and move it into place, so runs
+        // restoring it never see part of a snapshot.
+        Path temporary = path.resolveSibling(path.getFileName() + "." +
+            ProcessHandle.current().pid() + ".tmp");
+        try {
+            Files.write(temporary, bytes.toByteArray());
+            Files.move(temporary, path,
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    // Defines the globals in the snapshot, replacing any with the same
+    // names, and interns their names in symbols.
+    static void restore(Path path, Environment globals, Symbols symbols)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(path)) {
+            ByteBuffer in = channel.map(
+                FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            read(in, globals, symbols);
+        } catch (BufferUnderflowException | IllegalArgumentException |
+                 IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException("Not a jlox snapshot.", e);
+        }
+    }
+
+    private static void read(ByteBuffer in, Environment globals,
+                             Symbols symbols) {
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IllegalArgumentException("Not a snapshot.");
+        }
+
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            int symbol = symbols.intern(string(in));
+            byte tag = in.get();
+            switch (tag) {
+                case NIL: globals.defineGlobal(symbol, null); break;
+                case TRUE: globals.defineGlobal(symbol, true); break;
+                case FALSE: globals.defineGlobal(symbol, false); break;
+                case NUMBER:
+                    globals.defineGlobal(symbol, null);
+                    globals.defineDouble(globals.globalSlot(symbol), in.getDouble());
+                    break;
+                case STRING: globals.defineGlobal(symbol, string(in)); break;
+                default:
+                    throw new IllegalArgumentException("Unknown value " + tag + ".");
+            }
+        }
+
+        if (in.hasRemaining()) {
+            throw new IllegalArgumentException("Trailing bytes.");
+        }
+    }
+
+    private static void string(DataOutputStream out, String string)
+            throws IOException {
+        byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String string(ByteBuffer in) {
+        byte[] utf8 = new byte[in.getInt()];
+        in.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+}
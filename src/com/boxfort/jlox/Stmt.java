@@ -23,6 +23,7 @@ abstract class Stmt {
         }
 
         final List<Stmt> statements;
+        int size = 0;
     }
 
     static class Expression extends Stmt {
@@ -81,6 +82,7 @@ abstract class Stmt {
 
         final Token name;
         final Expr initializer;
+        int slot = -1;
     }
 
     static class While extends Stmt {
@@ -99,4 +101,6 @@ abstract class Stmt {
     }
 
     abstract <R> R accept(Visitor<R> visitor);
+
+    int id = -1;
 }
@@ -0,0 +1,119 @@
+package com.boxfort.jlox;
+
+import java.util.Arrays;
+
+// Interns identifier names, giving each distinct name a small integer
+// id, so globals can be looked up by comparing ints rather than hashing
+// and comparing strings. Ids are only meaningful within one table: a
+// program is scanned with one, and its globals are keyed by the ids it
+// handed out. Names are never removed, so a table lives only as long as
+// the programs that use it. JloxEngine makes one for each program it
+// compiles, and jlox one for the whole run, shared by every REPL line.
+//
+// Scanners on several threads intern at once, so names that are
+// already interned are found without locking. A racing reader may not
+// see the latest additions, in which case it looks again holding the
+// lock. Any name it does see is fully constructed, as Strings are
+// immutable.
+final class Symbols {
+    private volatile String[] names = new String[64];
+    private int count = 0;
+
+    // Open-addressed table of ids, or -1 for an empty bucket.
+    private volatile int[] table = newTable(128);
+
+    int intern(String name) {
+        return intern(name.toCharArray(), 0, name.length());
+    }
+
+    // Interns the name in source[start, start + length) without
+    // creating a String unless the name is new.
+    int intern(char[] source, int start, int length) {
+        int hash = hash(source, start, length);
+        int symbol = find(source, start, length, hash);
+        if (symbol != -1) return symbol;
+
+        return add(source, start, length, hash);
+    }
+
+    String name(int symbol) {
+        String[] names = this.names;
+        if (symbol < names.length && names[symbol] != null) return names[symbol];
+
+        synchronized (this) {
+            return this.names[symbol];
+        }
+    }
+
+    // Returns the id of the name, or -1 if it can't be seen.
+    private int find(char[] source, int start, int length, int hash) {
+        int[] table = this.table;
+        String[] names = this.names;
+        int mask = table.length - 1;
+        for (int bucket = hash & mask; ; bucket = (bucket + 1) & mask) {
+            int symbol = table[bucket];
+            if (symbol == -1 || symbol >= names.length) return -1;
+
+            String name = names[symbol];
+            if (name == null) return -1;
+            if (matches(name, source, start, length)) return symbol;
+        }
+    }
+
+    private synchronized int add(char[] source, int start, int length,
+                                 int hash) {
+        int symbol = find(source, start, length, hash);
+        if (symbol != -1) return symbol;
+
+        if (count == names.length) names = Arrays.copyOf(names, count * 2);
+        names[count] = new String(source, start, length);
+
+        // Keep the table at most half full.
+        if (count * 2 >= table.length) {
+            int[] grown = newTable(table.length * 2);
+            for (int i = 0; i < count; i++) {
+                insert(grown, i, spread(names[i].hashCode()));
+            }
+            table = grown;
+        }
+        insert(table, count, hash);
+
+        return count++;
+    }
+
+    private static void insert(int[] table, int symbol, int hash) {
+        int mask = table.length - 1;
+        int bucket = hash & mask;
+        while (table[bucket] != -1) bucket = (bucket + 1) & mask;
+        table[bucket] = symbol;
+    }
+
+    // The same hash as String.hashCode(), spread so the low bits used
+    // to pick a bucket depend on every character.
+    private static int hash(char[] source, int start, int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + source[i];
+        }
+        return spread(hash);
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(String name, char[] source, int start,
+                                   int length) {
+        if (name.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != source[start + i]) return false;
+        }
+        return true;
+    }
+
+    private static int[] newTable(int capacity) {
+        int[] table = new int[capacity];
+        Arrays.fill(table, -1);
+        return table;
+    }
+}
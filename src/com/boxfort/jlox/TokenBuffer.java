@@ -0,0 +1,144 @@
+package com.boxfort.jlox;
+
+import java.util.Arrays;
+
+// The tokens of a source string, packed into parallel arrays of type,
+// offset, length, line and symbol instead of a Token object each.
+// Identifiers are interned in the given Symbols as they're added. Lexemes and
+// literals are only created when a Token is asked for, which the
+// parser does for the tokens it keeps in the syntax tree and for those
+// it reports errors at.
+class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final char[] source;
+    private final Symbols table;
+    private int[] types = new int[INITIAL_CAPACITY];
+    private int[] starts = new int[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private int[] lines = new int[INITIAL_CAPACITY];
+    private int[] symbols = new int[INITIAL_CAPACITY];
+    private int count = 0;
+
+    TokenBuffer(char[] source, Symbols table) {
+        this.source = source;
+        this.table = table;
+    }
+
+    void add(TokenType type, int start, int length, int line) {
+        ensureCapacity(count + 1);
+
+        types[count] = type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        lines[count] = line;
+        symbols[count] = type == TokenType.IDENTIFIER ?
+            table.intern(source, start, length) : -1;
+        count++;
+    }
+
+    // Adds the tokens of other, a buffer over the same source, moving
+    // them down by lineOffset lines.
+    void append(TokenBuffer other, int lineOffset) {
+        ensureCapacity(count + other.count);
+        System.arraycopy(other.types, 0, types, count, other.count);
+        System.arraycopy(other.starts, 0, starts, count, other.count);
+        System.arraycopy(other.lengths, 0, lengths, count, other.count);
+        System.arraycopy(other.symbols, 0, symbols, count, other.count);
+        for (int i = 0; i < other.count; i++) {
+            lines[count + i] = other.lines[i] + lineOffset;
+        }
+        count += other.count;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= types.length) return;
+
+        capacity = Math.max(capacity, types.length * 2);
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+        symbols = Arrays.copyOf(symbols, capacity);
+    }
+
+    int size() {
+        return count;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    int line(int index) {
+        return lines[index];
+    }
+
+    Token token(int index) {
+        return new Token(type(index), lexeme(index), literal(index),
+            lines[index], symbols[index]);
+    }
+
+    private String lexeme(int index) {
+        return new String(source, starts[index], lengths[index]);
+    }
+
+    private Object literal(int index) {
+        return literal(type(index), source, starts[index], lengths[index]);
+    }
+
+    // Creates a token from its characters in source, working out its
+    // literal value from the lexeme.
+    static Token token(TokenType type, char[] source, int start, int length,
+                       int line, Symbols table) {
+        int symbol = type == TokenType.IDENTIFIER ?
+            table.intern(source, start, length) : -1;
+        return new Token(type, new String(source, start, length),
+            literal(type, source, start, length), line, symbol);
+    }
+
+    private static Object literal(TokenType type, char[] source, int start,
+                                  int length) {
+        switch (type) {
+            case STRING:
+                // Trim the surrounding quotes
+                return new String(source, start + 1, length - 2);
+            case NUMBER:
+                return Double.parseDouble(new String(source, start, length));
+            default:
+                return null;
+        }
+    }
+
+    TokenCursor cursor() {
+        return new TokenCursor() {
+            private int current = 0;
+
+            @Override
+            public TokenType peekType() {
+                return type(current);
+            }
+
+            @Override
+            public Token peek() {
+                return token(current);
+            }
+
+            @Override
+            public TokenType previousType() {
+                return type(current - 1);
+            }
+
+            @Override
+            public Token previous() {
+                return token(current - 1);
+            }
+
+            @Override
+            public void advance() {
+                current++;
+            }
+        };
+    }
+}
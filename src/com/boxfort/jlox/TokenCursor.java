@@ -0,0 +1,15 @@
+package com.boxfort.jlox;
+
+// A position in a sequence of tokens ending with EOF. The parser mostly
+// only needs token types, so cursors can avoid creating a Token until
+// one is asked for.
+interface TokenCursor {
+    TokenType peekType();
+    Token peek();
+
+    TokenType previousType();
+    Token previous();
+
+    // Moves past the current token. Never called at EOF.
+    void advance();
+}
@@ -0,0 +1,42 @@
+package com.boxfort.jlox;
+
+import java.util.Iterator;
+
+// A cursor over tokens pulled one at a time, keeping only the current
+// and previous token.
+class TokenStream implements TokenCursor {
+    private final Iterator<Token> tokens;
+    private Token current;
+    private Token previous = null;
+
+    TokenStream(Iterator<Token> tokens) {
+        this.tokens = tokens;
+        this.current = tokens.next();
+    }
+
+    @Override
+    public TokenType peekType() {
+        return current.type;
+    }
+
+    @Override
+    public Token peek() {
+        return current;
+    }
+
+    @Override
+    public TokenType previousType() {
+        return previous.type;
+    }
+
+    @Override
+    public Token previous() {
+        return previous;
+    }
+
+    @Override
+    public void advance() {
+        previous = current;
+        current = tokens.next();
+    }
+}
@@ -0,0 +1,14 @@
+package com.boxfort.jlox;
+
+// Thrown by the Interpreter's unboxed evaluation paths when a value
+// turns out not to be of the expected type. Carries the value so the
+// caller can continue on the generic path without evaluating again.
+class UnexpectedResult extends Exception {
+    final Object result;
+
+    UnexpectedResult(Object result) {
+        // No message, cause or stack trace, only the value matters.
+        super(null, null, false, false);
+        this.result = result;
+    }
+}
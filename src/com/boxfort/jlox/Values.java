@@ -0,0 +1,47 @@
+package com.boxfort.jlox;
+
+// The semantics of Lox values shared by every execution engine.
+public final class Values {
+    private Values() {}
+
+    public static String stringify(Object object) {
+        if (object == null) return "nil";
+
+        // Integer-valued doubles are printed without java's ".0".
+        if (object instanceof Double) {
+            return NumberFormatter.toString((double)object);
+        }
+
+        return object.toString();
+    }
+
+    public static boolean isEqual(Object left, Object right) {
+        // nil is only equal to nil.
+        if (left == null && right == null) return true;
+        if (left == null) return false;
+
+        // Strings may be ropes, which are compared by their contents.
+        if (left instanceof Rope || right instanceof Rope) {
+            return isString(left) && isString(right) &&
+                left.toString().equals(right.toString());
+        }
+
+        return left.equals(right);
+    }
+
+    // Lox strings are Strings, or Ropes built by concatenation.
+    public static boolean isString(Object obj) {
+        return obj instanceof String || obj instanceof Rope;
+    }
+
+    // Concatenates two strings, as checked by isString().
+    public static Object concat(Object left, Object right) {
+        return Rope.concat((CharSequence)left, (CharSequence)right);
+    }
+
+    public static boolean isTruthy(Object obj) {
+        if(obj == null) return true;
+        if(obj instanceof Boolean) return (boolean)obj;
+        return true;
+    }
+}
@@ -0,0 +1,98 @@
+package com.boxfort.jlox.vm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// A compiled program: the bytecode, its constant pool and a
+// run-length encoded table mapping bytecode offsets to source lines.
+public class Chunk {
+    private byte[] code = new byte[256];
+    private int count = 0;
+
+    private Object[] constants = new Object[16];
+    private int constantCount = 0;
+    private final Map<Object, Integer> constantIndices = new HashMap<>();
+
+    // Pairs of (first offset, line) for every run of instructions
+    // that came from the same line.
+    private int[] lines = new int[32];
+    private int lineCount = 0;
+
+    int maxStack = 0;
+
+    public void write(byte b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+        }
+        code[count] = b;
+
+        if (lineCount == 0 || lines[lineCount - 1] != line) {
+            if (lineCount == lines.length) {
+                lines = Arrays.copyOf(lines, lineCount * 2);
+            }
+            lines[lineCount++] = count;
+            lines[lineCount++] = line;
+        }
+
+        count++;
+    }
+
+    public void writeShort(int value, int line) {
+        write((byte)((value >> 8) & 0xff), line);
+        write((byte)(value & 0xff), line);
+    }
+
+    public void patchShort(int offset, int value) {
+        code[offset] = (byte)((value >> 8) & 0xff);
+        code[offset + 1] = (byte)(value & 0xff);
+    }
+
+    // Returns the index of the value in the constant pool, adding it
+    // if an equal constant isn't already present. Returns -1 if the
+    // pool is full.
+    public int addConstant(Object value) {
+        Integer index = constantIndices.get(value);
+        if (index != null) return index;
+
+        if (constantCount > 0xffff) return -1;
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        constantIndices.put(value, constantCount);
+        return constantCount++;
+    }
+
+    public void setMaxStack(int maxStack) {
+        this.maxStack = maxStack;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public int getLine(int offset) {
+        // Find the last run starting at or before the offset.
+        int low = 0;
+        int high = lineCount / 2 - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (lines[mid * 2] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return lines[low * 2 + 1];
+    }
+
+    byte[] code() {
+        return code;
+    }
+
+    Object[] constants() {
+        return constants;
+    }
+}
@@ -0,0 +1,38 @@
+package com.boxfort.jlox.vm;
+
+// Instruction set of the VM. Opcodes are plain bytes rather than an
+// enum so the dispatch loop can switch on them directly. Operands are
+// unsigned 16-bit values stored big-endian after the opcode.
+public final class OpCode {
+    private OpCode() {}
+
+    public static final byte CONSTANT      = 0;  // u16 constant index
+    public static final byte NIL           = 1;
+    public static final byte TRUE          = 2;
+    public static final byte FALSE         = 3;
+    public static final byte POP           = 4;
+    public static final byte POPN          = 5;  // u16 count
+    public static final byte GET_LOCAL     = 6;  // u16 stack slot
+    public static final byte SET_LOCAL     = 7;  // u16 stack slot
+    public static final byte GET_GLOBAL    = 8;  // u16 name constant
+    public static final byte DEFINE_GLOBAL = 9;  // u16 name constant
+    public static final byte SET_GLOBAL    = 10; // u16 name constant
+    public static final byte EQUAL         = 11;
+    public static final byte NOT_EQUAL     = 12;
+    public static final byte GREATER       = 13;
+    public static final byte GREATER_EQUAL = 14;
+    public static final byte LESS          = 15;
+    public static final byte LESS_EQUAL    = 16;
+    public static final byte ADD           = 17;
+    public static final byte SUBTRACT      = 18;
+    public static final byte MULTIPLY      = 19;
+    public static final byte DIVIDE        = 20;
+    public static final byte NOT           = 21;
+    public static final byte NEGATE        = 22;
+    public static final byte TERNARY       = 23;
+    public static final byte PRINT         = 24;
+    public static final byte JUMP          = 25; // u16 forward offset
+    public static final byte JUMP_IF_FALSE = 26; // u16 forward offset
+    public static final byte LOOP          = 27; // u16 backward offset
+    public static final byte RETURN        = 28;
+}
@@ -0,0 +1,214 @@
+package com.boxfort.jlox.vm;
+
+import com.boxfort.jlox.OutputSink;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.boxfort.jlox.Values.*;
+
+// A stack based virtual machine executing compiled Chunks. Globals
+// persist between calls to interpret() so the REPL keeps its state.
+public class VM {
+    private final Map<String, Object> globals = new HashMap<>();
+    private final OutputSink output;
+
+    public VM() {
+        this(System.out::println);
+    }
+
+    public VM(OutputSink output) {
+        this.output = output;
+    }
+
+    public void interpret(Chunk chunk) {
+        final byte[] code = chunk.code();
+        final Object[] constants = chunk.constants();
+        final Object[] stack = new Object[chunk.maxStack + 1];
+        int sp = 0;
+        int ip = 0;
+
+        for (;;) {
+            switch (code[ip++]) {
+                case OpCode.CONSTANT:
+                    stack[sp++] = constants[readShort(code, ip)];
+                    ip += 2;
+                    break;
+                case OpCode.NIL: stack[sp++] = null; break;
+                case OpCode.TRUE: stack[sp++] = true; break;
+                case OpCode.FALSE: stack[sp++] = false; break;
+                case OpCode.POP: sp--; break;
+                case OpCode.POPN:
+                    sp -= readShort(code, ip);
+                    ip += 2;
+                    break;
+                case OpCode.GET_LOCAL:
+                    stack[sp++] = stack[readShort(code, ip)];
+                    ip += 2;
+                    break;
+                case OpCode.SET_LOCAL:
+                    stack[readShort(code, ip)] = stack[sp - 1];
+                    ip += 2;
+                    break;
+                case OpCode.GET_GLOBAL: {
+                    String name = (String)constants[readShort(code, ip)];
+                    Object value = globals.get(name);
+                    if (value == null && !globals.containsKey(name)) {
+                        throw undefinedVariable(chunk, ip, name);
+                    }
+                    stack[sp++] = value;
+                    ip += 2;
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL:
+                    globals.put((String)constants[readShort(code, ip)],
+                        stack[--sp]);
+                    ip += 2;
+                    break;
+                case OpCode.SET_GLOBAL: {
+                    String name = (String)constants[readShort(code, ip)];
+                    if (!globals.containsKey(name)) {
+                        throw undefinedVariable(chunk, ip, name);
+                    }
+                    globals.put(name, stack[sp - 1]);
+                    ip += 2;
+                    break;
+                }
+                case OpCode.EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = isEqual(stack[sp - 1], right);
+                    break;
+                }
+                case OpCode.NOT_EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = !isEqual(stack[sp - 1], right);
+                    break;
+                }
+                case OpCode.GREATER: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(chunk, ip, left, right);
+                    stack[sp - 1] = (double)left > (double)right;
+                    break;
+                }
+                case OpCode.GREATER_EQUAL: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(chunk, ip, left, right);
+                    stack[sp - 1] = (double)left >= (double)right;
+                    break;
+                }
+                case OpCode.LESS: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(chunk, ip, left, right);
+                    stack[sp - 1] = (double)left < (double)right;
+                    break;
+                }
+                case OpCode.LESS_EQUAL: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(chunk, ip, left, right);
+                    stack[sp - 1] = (double)left <= (double)right;
+                    break;
+                }
+                case OpCode.ADD: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    if (left instanceof Double && right instanceof Double) {
+                        stack[sp - 1] = (double)left + (double)right;
+                    } else if (isString(left) && isString(right)) {
+                        stack[sp - 1] = concat(left, right);
+                    } else {
+                        throw error(chunk, ip,
+                            "Operands must be two numbers or two strings.");
+                    }
+                    break;
+                }
+                case OpCode.SUBTRACT: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(chunk, ip, left, right);
+                    stack[sp - 1] = (double)left - (double)right;
+                    break;
+                }
+                case OpCode.MULTIPLY: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(chunk, ip, left, right);
+                    stack[sp - 1] = (double)left * (double)right;
+                    break;
+                }
+                case OpCode.DIVIDE: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    checkNumberOperands(chunk, ip, left, right);
+                    if ((double)right == 0) {
+                        throw error(chunk, ip, "Cannot divide by zero.");
+                    }
+                    stack[sp - 1] = (double)left / (double)right;
+                    break;
+                }
+                case OpCode.NOT:
+                    stack[sp - 1] = !isTruthy(stack[sp - 1]);
+                    break;
+                case OpCode.NEGATE:
+                    if (!(stack[sp - 1] instanceof Double)) {
+                        throw error(chunk, ip, "Operand must be a number.");
+                    }
+                    stack[sp - 1] = -(double)stack[sp - 1];
+                    break;
+                case OpCode.TERNARY: {
+                    Object right = stack[--sp];
+                    Object left = stack[--sp];
+                    Object condition = stack[sp - 1];
+                    if (!(condition instanceof Boolean)) {
+                        throw error(chunk, ip,
+                            "Ternary condition must be a boolean value.");
+                    }
+                    stack[sp - 1] = (Boolean)condition ? left : right;
+                    break;
+                }
+                case OpCode.PRINT:
+                    output.printValue(stack[--sp]);
+                    break;
+                case OpCode.JUMP:
+                    ip += readShort(code, ip) + 2;
+                    break;
+                case OpCode.JUMP_IF_FALSE:
+                    if (!isTruthy(stack[sp - 1])) {
+                        ip += readShort(code, ip);
+                    }
+                    ip += 2;
+                    break;
+                case OpCode.LOOP:
+                    ip -= readShort(code, ip) - 2;
+                    break;
+                case OpCode.RETURN:
+                    return;
+            }
+        }
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private static void checkNumberOperands(
+        Chunk chunk, int ip, Object left, Object right)
+    {
+        if (left instanceof Double && right instanceof Double) return;
+
+        throw error(chunk, ip, "Operands must be numbers.");
+    }
+
+    private static VmError undefinedVariable(Chunk chunk, int ip, String name) {
+        return error(chunk, ip, "Undefined variable '" + name + "'.");
+    }
+
+    // The ip has already moved past the failing opcode so look up the
+    // line of the byte before it.
+    private static VmError error(Chunk chunk, int ip, String message) {
+        return new VmError(message, chunk.getLine(ip - 1));
+    }
+}
@@ -0,0 +1,10 @@
+package com.boxfort.jlox.vm;
+
+public class VmError extends RuntimeException {
+    public final int line;
+
+    VmError(String message, int line) {
+        super(message);
+        this.line = line;
+    }
+}
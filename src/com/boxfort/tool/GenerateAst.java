@@ -13,28 +13,37 @@ public class GenerateAst {
         }
         String outputDir = args[0];
         defineAst(outputDir, "Expr", Arrays.asList(
-            "Assign   : Token name, Expr value",
+            "Assign   : Token name, Expr value ; int depth = -1, int slot = -1",
             "Ternary  : Expr condition, Token operator, Expr left, Expr right",
-            "Binary   : Expr left, Token operator, Expr right",
+            "Binary   : Expr left, Token operator, Expr right ; BinaryNode node = BinaryNode.UNINITIALIZED",
             "Grouping : Expr expression",
             "Literal  : Object value",
             "Logical  : Expr left, Token operator, Expr right",
             "Unary    : Token operator, Expr right",
-            "Variable : Token name"
+            "Variable : Token name ; int depth = -1, int slot = -1"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
-            "Block      : List<Stmt> statements",
+            "Block      : List<Stmt> statements ; int size = 0",
             "Expression : Expr expression",
             "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
             "Print      : Expr expression",
-            "Var        : Token name, Expr initializer",
+            "Var        : Token name, Expr initializer ; int slot = -1",
             "While      : Expr condition, Stmt body"
-        ));
+        ), "int id = -1");
     }
 
     private static void defineAst(
         String outputDir, String baseName, List<String> types
+    ) throws IOException {
+        defineAst(outputDir, baseName, types, null);
+    }
+
+    // The base fields are mutable fields every type has, like those
+    // after the ';' in a type description.
+    private static void defineAst(
+        String outputDir, String baseName, List<String> types,
+        String baseFields
     ) throws IOException {
         String path = outputDir + "/" + baseName + ".java";
         PrintWriter writer = new PrintWriter(path, "UTF-8");
@@ -50,14 +59,23 @@ public class GenerateAst {
         // The AST classes.
         for (String type: types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] fields = type.split(":")[1].split(";");
+            String mutableFields = fields.length > 1 ? fields[1].trim() : null;
+            defineType(writer, baseName, className, fields[0].trim(),
+                mutableFields);
             writer.println();
         }
 
         // The base accept() method.
         writer.println("    abstract <R> R accept(Visitor<R> visitor);");
 
+        if (baseFields != null) {
+            writer.println();
+            for (String field : baseFields.split(", ")) {
+                writer.println("    " + field + ";");
+            }
+        }
+
         writer.println("}");
         writer.close();
     }
@@ -78,9 +96,11 @@ public class GenerateAst {
         writer.println();
     }
 
+    // Fields after the ';' in a type description are not constructor
+    // parameters. They are filled in by later passes such as the Resolver.
     private static void defineType(
         PrintWriter writer, String baseName,
-        String className, String fieldList)
+        String className, String fieldList, String mutableFieldList)
     {
         // Class declaration.
         writer.println("    static class " + className + " extends " +
@@ -112,6 +132,12 @@ public class GenerateAst {
             writer.println("        final " + field + ";");
         }
 
+        if (mutableFieldList != null) {
+            for (String field : mutableFieldList.split(", ")) {
+                writer.println("        " + field + ";");
+            }
+        }
+
         writer.println("    }");
     }
 }